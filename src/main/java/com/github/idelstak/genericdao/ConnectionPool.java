@@ -14,6 +14,9 @@ import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Semaphore;
+import javax.management.JMException;
 
 import com.github.idelstak.genericdao.impl.ConnPoolImpl;
 import com.github.idelstak.genericdao.impl.MyPrintWriter;
@@ -26,7 +29,11 @@ import com.github.idelstak.genericdao.impl.TranImpl;
  * we ask the connection pool for a connection and return it to the connection
  * pool when we're finished.  The connection pool will save the connection for
  * for subsequent reuse.  If there are no open connections to hand out, the
- * connection pool opens another one.  With some JDBC implementations, idle
+ * connection pool opens another one.  By default there is no limit on the
+ * number of connections opened.  Use the constructor that takes a maximum
+ * size to bound the pool; when all connections are in use, callers of
+ * <tt>getConnection()</tt> wait (in arrival order) for one to be released.
+ * With some JDBC implementations, idle
  * connections eventually fail.  So, this connection pool closes idle
  * connections.  (See implementation for the current settings to determine
  * how long idle connections remain open.)
@@ -38,18 +45,107 @@ import com.github.idelstak.genericdao.impl.TranImpl;
  */
 public class ConnectionPool {
 
+    /**
+     * A read to run on a connection of its own (see <tt>executeRead()</tt>).
+     *
+     * @param <T> the type of the read's result
+     */
+    public interface ReadOperation<T> {
+        /**
+         * Runs the read.  Do not close or release the connection.  If the read
+         * is hedged (see <tt>ReplicatedConnectionPool</tt>), it may be
+         * cancelled (with <tt>Statement.cancel()</tt>) or run twice, on
+         * different threads, so it must not write.
+         *
+         * @param c the connection to use
+         * @return the result
+         * @throws SQLException if the read fails
+         */
+        T execute(Connection c) throws SQLException;
+    }
+
     /**
      * Default max idle time for connections. Value is 5 seconds.
      */
     public final static long DEFAULT_MAX_IDLE_TIME = 5 * 1000;
 
+    /**
+     * Default max lifetime for connections, as set by the bounded
+     * constructor.  (The other constructors don't limit lifetime.)  Value
+     * is 30 minutes.
+     */
+    public final static long DEFAULT_MAX_LIFETIME = 30 * 60 * 1000;
+
+    /**
+     * Default number of prepared statements cached per connection, as set by
+     * the bounded constructor.  (The other constructors don't cache
+     * statements.)  Value is 50.
+     */
+    public final static int DEFAULT_STATEMENT_CACHE_SIZE = 50;
+
+    /**
+     * Default time a connection can sit idle before it is validated when it
+     * is next handed out, as set by the bounded constructor.  (The other
+     * constructors don't validate connections.)  Value is half a second.
+     */
+    public final static long DEFAULT_VALIDATION_IDLE_THRESHOLD = 500;
+
+    /**
+     * Default time to wait for a connection to answer validation.  Value is
+     * 5 seconds.
+     */
+    public final static int DEFAULT_VALIDATION_TIMEOUT = 5;
+
+    /**
+     * Default time to wait for a connection when a bounded pool is exhausted.
+     * Value is 30 seconds.
+     */
+    public final static long DEFAULT_BORROW_TIMEOUT = 30 * 1000;
+
     private ConnPoolImpl connPoolImpl;
+    // Limits this pool's share of a shared pool (see TenantDAOFactory).  Null
+    // for an ordinary pool.
+    private final Semaphore quota;
 
     public ConnectionPool(String jdbcDriverName, String jdbcURL) {
         this(jdbcDriverName, jdbcURL, null, null);
     }
 
     public ConnectionPool(String jdbcDriverName, String jdbcURL, String user, String password) {
+        // No lifetime limit, statement cache or idle validation, as always
+        // (the setters turn them on)
+        this(jdbcDriverName, jdbcURL, user, password, 0, 0, DEFAULT_BORROW_TIMEOUT, 0, 0, Long.MAX_VALUE);
+    }
+
+    /**
+     * Creates a bounded connection pool.  Connections are replaced after
+     * <tt>DEFAULT_MAX_LIFETIME</tt> (see <tt>setMaxLifetime()</tt>), and
+     * each caches <tt>DEFAULT_STATEMENT_CACHE_SIZE</tt> prepared statements
+     * (see <tt>setStatementCacheSize()</tt>) and is validated when handed out
+     * after <tt>DEFAULT_VALIDATION_IDLE_THRESHOLD</tt> idle (see
+     * <tt>setValidationIdleThreshold()</tt>).
+     *
+     * @param jdbcDriverName the JDBC Driver Name
+     * @param jdbcURL the JDBC URL
+     * @param user the user name used to log into the database (can be null)
+     * @param password the password used to log into the database (can be null)
+     * @param minSize the number of connections the pool keeps open even
+     *            when they are idle
+     * @param maxSize the maximum number of connections handed out at once,
+     *            or zero for no limit
+     * @param borrowTimeout the time in milliseconds <tt>getConnection()</tt>
+     *            waits for a connection when all <tt>maxSize</tt> are in use
+     *            before throwing <tt>SQLException</tt>
+     */
+    public ConnectionPool(String jdbcDriverName, String jdbcURL, String user, String password,
+            int minSize, int maxSize, long borrowTimeout) {
+        this(jdbcDriverName, jdbcURL, user, password, minSize, maxSize, borrowTimeout, DEFAULT_MAX_LIFETIME,
+                DEFAULT_STATEMENT_CACHE_SIZE, DEFAULT_VALIDATION_IDLE_THRESHOLD);
+    }
+
+    private ConnectionPool(String jdbcDriverName, String jdbcURL, String user, String password,
+            int minSize, int maxSize, long borrowTimeout, long maxLifetime, int statementCacheSize,
+            long validationIdleThreshold) {
         if (jdbcDriverName == null) {
             throw new NullPointerException("jdbcDriverName");
         }
@@ -60,9 +156,104 @@ public class ConnectionPool {
 
         // User and password can be null
 
+        if (minSize < 0) {
+            throw new IllegalArgumentException("minSize is negative: " + minSize);
+        }
+
+        if (maxSize < 0) {
+            throw new IllegalArgumentException("maxSize is negative: " + maxSize);
+        }
+
+        if (maxSize > 0 && minSize > maxSize) {
+            throw new IllegalArgumentException("minSize (" + minSize + ") is greater than maxSize (" + maxSize + ")");
+        }
+
+        if (borrowTimeout < 0) {
+            throw new IllegalArgumentException("borrowTimeout is negative: " + borrowTimeout);
+        }
+
+        quota = null;
         connPoolImpl = new ConnPoolImpl(jdbcDriverName, jdbcURL,
                                         user, password,
-                                        DEFAULT_MAX_IDLE_TIME);
+                                        DEFAULT_MAX_IDLE_TIME, maxLifetime,
+                                        minSize, maxSize, borrowTimeout,
+                                        statementCacheSize,
+                                        DEFAULT_VALIDATION_TIMEOUT,
+                                        validationIdleThreshold);
+    }
+
+    /**
+     * Gets a connection for a read outside of a transaction.  GenericDAO uses
+     * this for <tt>read()</tt>, <tt>match()</tt> and <tt>getBeanCount()</tt>
+     * when there is no active transaction.  This pool always hands out one of
+     * its own connections (see <tt>ReplicatedConnectionPool</tt> for a pool
+     * that sends reads elsewhere).  Return the connection with
+     * <tt>releaseConnection()</tt>, as usual.
+     *
+     * @return a JDBC SQL Connection
+     * @throws SQLException
+     *             if a connection cannot be obtained
+     */
+    public Connection getReadConnection() throws SQLException {
+        return getConnection();
+    }
+
+    /**
+     * Borrows the connection for a read, or for a transaction begun with
+     * <tt>Transaction.beginReadOnly()</tt>.  Called in or out of a transaction.
+     */
+    Connection borrowReadConnection() throws SQLException {
+        return connPoolImpl.getConnection(quota);
+    }
+
+    /**
+     * Like <tt>borrowReadConnection()</tt>, but waits at most
+     * <tt>timeoutMillis</tt> (zero not to wait) if all connections are in use.
+     */
+    Connection borrowReadConnection(long timeoutMillis) throws SQLException {
+        return connPoolImpl.getConnection(quota, timeoutMillis);
+    }
+
+    /**
+     * Runs a read outside of a transaction on a connection from
+     * <tt>getReadConnection()</tt>, and returns the connection.  This is how
+     * GenericDAO runs <tt>read()</tt> and <tt>match()</tt> outside of a
+     * transaction, so a subclass can change where (and how) reads run, as
+     * <tt>ReplicatedConnectionPool</tt> does.
+     *
+     * @param <T> the type of the read's result
+     * @param op the read
+     * @return the result of the read
+     * @throws SQLException
+     *             if a connection cannot be obtained or the read fails
+     */
+    public <T> T executeRead(ReadOperation<T> op) throws SQLException {
+        Connection c = getReadConnection();
+        T result;
+        try {
+            result = op.execute(c);
+        } catch (SQLException | RuntimeException | Error e) {
+            // It may have been left in the middle of a statement
+            try {
+                c.close();
+            } catch (SQLException e2) {
+                e.addSuppressed(e2);
+            }
+            throw e;
+        }
+
+        releaseConnection(c);
+        return result;
+    }
+
+    /**
+     * Creates a pool that hands out connections from <tt>shared</tt>, but at
+     * most <tt>quota</tt> at once (or any number, if <tt>quota</tt> is zero).
+     * Settings and statistics are those of the shared pool.
+     */
+    ConnectionPool(ConnectionPool shared, int quota) {
+        this.connPoolImpl = shared.connPoolImpl;
+        this.quota = (quota > 0) ? new Semaphore(quota, true) : null;
     }
 
     public Connection getConnection() throws SQLException {
@@ -71,7 +262,17 @@ public class ConnectionPool {
                     "Cannot get separate connections during a transaction.  Try using getTransactionConnection().");
         }
 
-        return connPoolImpl.getConnection();
+        return connPoolImpl.getConnection(quota);
+    }
+
+    /**
+     * Gets the time <tt>getConnection()</tt> waits for a connection when all
+     * connections in a bounded pool are in use.
+     *
+     * @return borrow timeout in milliseconds
+     */
+    public long getBorrowTimeout() {
+        return connPoolImpl.getBorrowTimeout();
     }
 
     public PrintWriter getDebugWriter() {
@@ -101,6 +302,73 @@ public class ConnectionPool {
         return connPoolImpl.getMaxIdleTime();
     }
 
+    /**
+     * Gets the time a connection can be held before it's reported as a
+     * possible leak.
+     *
+     * @return leak detection threshold in milliseconds, or zero if leak
+     *         detection is off
+     */
+    public long getLeakDetectionThreshold() {
+        return connPoolImpl.getLeakDetectionThreshold();
+    }
+
+    /**
+     * Gets the number of idle connections the pool tries to keep ready.
+     *
+     * @return the number of connections opened ahead of demand
+     */
+    public int getMinIdle() {
+        return connPoolImpl.getMinIdle();
+    }
+
+    /**
+     * Get the time after which connections are closed and replaced,
+     * however busy they are.
+     *
+     * @return maximum lifetime in milliseconds, or zero for no limit
+     */
+    public long getMaxLifetime() {
+        return connPoolImpl.getMaxLifetime();
+    }
+
+    /**
+     * Gets the maximum number of connections this pool hands out at once.
+     *
+     * @return the maximum pool size, or zero if the pool is unbounded
+     */
+    public int getMaxSize() {
+        return connPoolImpl.getMaxSize();
+    }
+
+    /**
+     * Gets the number of connections that may be handed out at once.  This is
+     * the maximum size, unless the pool sizes itself adaptively.
+     *
+     * @return the current concurrency limit, or zero if the pool is unbounded
+     */
+    public int getConcurrencyLimit() {
+        return connPoolImpl.getConcurrencyLimit();
+    }
+
+    /**
+     * Tells whether the pool sizes itself adaptively.
+     *
+     * @return true if adaptive sizing is on
+     */
+    public boolean isAdaptiveSizing() {
+        return connPoolImpl.isAdaptiveSizing();
+    }
+
+    /**
+     * Gets the number of connections this pool keeps open when they are idle.
+     *
+     * @return the minimum pool size
+     */
+    public int getMinSize() {
+        return connPoolImpl.getMinSize();
+    }
+
     /**
      * Get the database connection used by the thread's current transaction.
      * The connection returned is the same one that a GenericDAO would be using
@@ -119,6 +387,10 @@ public class ConnectionPool {
      * Note that current only one connection pool can be used in any transaction
      * (because the ACID properties cannot be guaranteed across SQL connections without a lot of work
      * and complication, e.g., using a two-phase commit protocol).
+     * <p>
+     * In a transaction begun with <code>Transaction.beginReadOnly()</code>,
+     * the connection is read-only and is borrowed as for
+     * <code>getReadConnection()</code>, so it may be a replica's.
      *
      * @return a JDBC SQL Connection
      * @throws RollbackException
@@ -133,7 +405,15 @@ public class ConnectionPool {
             throw new RollbackException("Must be in a transaction");
         }
 
-        return TranImpl.join(this, connPoolImpl);
+        if (TranImpl.isOutermostReadOnly()) {
+            return TranImpl.join(this, new Callable<Connection>() {
+                public Connection call() throws SQLException {
+                    return borrowReadConnection();
+                }
+            });
+        }
+
+        return TranImpl.join(this, connPoolImpl, quota);
     }
 
     /**
@@ -145,6 +425,66 @@ public class ConnectionPool {
         return connPoolImpl.getURL();
     }
 
+    /**
+     * Gets the number of prepared statements cached per connection.
+     *
+     * @return the statement cache size, or zero if caching is off
+     */
+    public int getStatementCacheSize() {
+        return connPoolImpl.getStatementCacheSize();
+    }
+
+    /**
+     * Gets the number of <tt>prepareStatement()</tt> calls that were
+     * answered from a connection's statement cache.
+     *
+     * @return statement cache hits since the pool was created
+     */
+    public long getStatementCacheHits() {
+        return connPoolImpl.getStatementCacheHits();
+    }
+
+    /**
+     * Gets the number of <tt>prepareStatement()</tt> calls that had to
+     * prepare a new statement.
+     *
+     * @return statement cache misses since the pool was created
+     */
+    public long getStatementCacheMisses() {
+        return connPoolImpl.getStatementCacheMisses();
+    }
+
+    /**
+     * Gets the time a connection can sit idle before it is validated when
+     * it is next handed out.
+     *
+     * @return validation idle threshold in milliseconds, or
+     *         <tt>Long.MAX_VALUE</tt> if validation is off
+     */
+    public long getValidationIdleThreshold() {
+        return connPoolImpl.getValidationIdleThreshold();
+    }
+
+    /**
+     * Gets the time to wait for a connection to answer validation.
+     *
+     * @return validation timeout in seconds
+     */
+    public int getValidationTimeout() {
+        return connPoolImpl.getValidationTimeout();
+    }
+
+    /**
+     * Gets a snapshot of this pool's statistics: how many connections are
+     * open, in use and idle, how many threads are waiting, and how long
+     * threads wait for connections, hold them, and take to open them.
+     *
+     * @return the pool's statistics as of now
+     */
+    public PoolStatistics getStatistics() {
+        return connPoolImpl.getStatistics();
+    }
+
     /**
      * Gets the user name that this connection pool uses to log into the
      * database.
@@ -156,6 +496,44 @@ public class ConnectionPool {
         return connPoolImpl.getUserName();
     }
 
+    /**
+     * Registers an MBean (a <tt>ConnectionPoolMXBean</tt>) for this pool with
+     * the platform MBean server, so its statistics can be watched with JMX
+     * tools such as JConsole.  The MBean's object name is
+     * <tt>com.github.idelstak.genericdao:type=ConnectionPool,name="<i>name</i>"</tt>.
+     *
+     * @param name
+     *            a name that distinguishes this pool from others in the JVM
+     * @throws DAOException
+     *             if the MBean cannot be registered, for example because the
+     *             name is already in use
+     */
+    public void registerMBean(String name) throws DAOException {
+        if (name == null) {
+            throw new NullPointerException("name");
+        }
+
+        try {
+            connPoolImpl.registerMBean(name);
+        } catch (JMException e) {
+            throw new DAOException(e);
+        }
+    }
+
+    /**
+     * Unregisters the MBean registered by <tt>registerMBean()</tt>, if any.
+     *
+     * @throws DAOException
+     *             if the MBean cannot be unregistered
+     */
+    public void unregisterMBean() throws DAOException {
+        try {
+            connPoolImpl.unregisterMBean();
+        } catch (JMException e) {
+            throw new DAOException(e);
+        }
+    }
+
     /**
      * Returns a connection to the connection pool. The connection should have
      * been obtained using <tt>getConnection()</tt>.
@@ -171,6 +549,21 @@ public class ConnectionPool {
         connPoolImpl.releaseConnection(c);
     }
 
+    /**
+     * Tells whether a connection was obtained from this pool (and so may be
+     * returned to it with <tt>releaseConnection()</tt>).
+     */
+    boolean owns(Connection c) {
+        return connPoolImpl.owns(c);
+    }
+
+    /**
+     * Returns the number of this pool's connections currently handed out.
+     */
+    int getActiveCount() {
+        return connPoolImpl.getActiveCount();
+    }
+
     /**
      * Sets up an output stream to which debugging output can be printed.
      * This will call can be use to enable all instances of GenericDAO
@@ -201,6 +594,181 @@ public class ConnectionPool {
         connPoolImpl.setMaxIdleTime(millis);
     }
 
+    /**
+     * Sets the number of prepared statements each pooled connection keeps
+     * open, keyed by their SQL.  Calling <tt>prepareStatement(sql)</tt>
+     * on a pooled connection reuses a cached statement for the same SQL, so
+     * the driver doesn't parse (or the server prepare) it again.  Closing
+     * the statement returns it to the cache.  The cache survives the
+     * connection being released to the pool.  When a cache is full, the
+     * least recently used statement is closed.
+     *
+     * @param size
+     *            the number of statements cached per connection, or zero to
+     *            turn caching off
+     */
+    public void setStatementCacheSize(int size) {
+        if (size < 0) {
+            throw new IllegalArgumentException("size is negative: " + size);
+        }
+        connPoolImpl.setStatementCacheSize(size);
+    }
+
+    /**
+     * Sets the time a connection can sit idle before it is validated when
+     * it is next handed out.  Validation is a round trip to the database
+     * (JDBC <tt>isValid()</tt>).  A connection that fails validation is
+     * closed and another one is handed out instead.  Since a failed
+     * connection usually means the database restarted or failed over, all
+     * the idle connections are closed at the same time (as they are when a
+     * connection reports a connection exception, SQLState class 08).
+     *
+     * @param millis
+     *            idle time after which connections are validated.  Zero
+     *            validates every connection handed out.
+     *            <tt>Long.MAX_VALUE</tt> turns validation off.
+     */
+    public void setValidationIdleThreshold(long millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("millis is negative: " + millis);
+        }
+        connPoolImpl.setValidationIdleThreshold(millis);
+    }
+
+    /**
+     * Sets the time to wait for a connection to answer validation.
+     *
+     * @param seconds
+     *            the validation timeout in seconds, or zero for no timeout
+     */
+    public void setValidationTimeout(int seconds) {
+        if (seconds < 0) {
+            throw new IllegalArgumentException("seconds is negative: " + seconds);
+        }
+        connPoolImpl.setValidationTimeout(seconds);
+    }
+
+    /**
+     * Turns on leak detection.  A connection obtained with
+     * <tt>getConnection()</tt> that isn't released (or closed) within the
+     * threshold is reported on the debug output (see
+     * <tt>setDebugOutput()</tt>) and counted in the pool's statistics.  For
+     * a sample of borrows (see <tt>setLeakTraceSampleRate()</tt>) the report
+     * includes the stack trace of the code that borrowed the connection.
+     * Connections are checked by the pool's background housekeeping, so
+     * leaks are reported up to a few seconds after the threshold passes.
+     * <p>
+     * Note that a connection used by a transaction is held until the
+     * transaction is committed or rolled back, so the threshold should be
+     * longer than your longest transaction.
+     *
+     * @param millis
+     *            time after which a connection is considered leaked, or zero
+     *            to turn leak detection off (the default)
+     */
+    public void setLeakDetectionThreshold(long millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("millis is negative: " + millis);
+        }
+        connPoolImpl.setLeakDetectionThreshold(millis);
+    }
+
+    /**
+     * Sets how often a borrow records its stack trace for leak reports.
+     * Capturing a stack trace is expensive, so by default only one borrow in
+     * 100 does.  Code that leaks usually leaks repeatedly, so one of its
+     * leaks is soon reported with a trace.  Set the rate to 1 while tracking
+     * down a particular leak.
+     *
+     * @param rate
+     *            one in every <tt>rate</tt> borrows records a stack trace
+     */
+    public void setLeakTraceSampleRate(int rate) {
+        if (rate < 1) {
+            throw new IllegalArgumentException("rate is less than 1: " + rate);
+        }
+        connPoolImpl.setLeakTraceSampleRate(rate);
+    }
+
+    /**
+     * Sets whether connections detected as leaked are taken back.  If so,
+     * the connection is closed and its slot is given to the next caller of
+     * <tt>getConnection()</tt>; the code that leaked it gets an
+     * <tt>SQLException</tt> if it uses the connection again.  By default,
+     * leaked connections are only reported.
+     *
+     * @param reclaim
+     *            true to close leaked connections
+     */
+    public void setReclaimLeakedConnections(boolean reclaim) {
+        connPoolImpl.setReclaimLeakedConnections(reclaim);
+    }
+
+    /**
+     * Turns adaptive sizing on or off.  It's off by default.
+     * <p>
+     * With adaptive sizing, the number of connections handed out at once
+     * varies between <tt>max(1, minSize)</tt> and <tt>maxSize</tt>, following
+     * how long connections are held.  While hold times stay flat and threads
+     * are waiting for connections, the limit grows.  When hold times rise
+     * (the database is saturated, and more connections would only queue up
+     * inside it), the limit shrinks.  The current limit is reported by
+     * <tt>getConcurrencyLimit()</tt>.  Turning adaptive sizing off restores
+     * the limit to <tt>maxSize</tt>.
+     *
+     * @param adaptive
+     *            true to size the pool adaptively
+     * @throws IllegalStateException
+     *             if the pool is unbounded
+     */
+    public void setAdaptiveSizing(boolean adaptive) {
+        connPoolImpl.setAdaptiveSizing(adaptive);
+    }
+
+    /**
+     * Sets the number of idle connections the pool tries to keep ready.
+     * When a caller of <tt>getConnection()</tt> finds fewer than this, more
+     * connections are opened in the background so that later callers don't
+     * wait for the database handshake.  The default is zero (connections
+     * are only opened when they are needed).
+     *
+     * @param count
+     *            the number of connections to open ahead of demand
+     */
+    public void setMinIdle(int count) {
+        if (count < 0) {
+            throw new IllegalArgumentException("count is negative: " + count);
+        }
+        connPoolImpl.setMinIdle(count);
+    }
+
+    /**
+     * Changes the time after which connections are closed and replaced.
+     * Idle connections are closed when they expire, connections in use are
+     * closed when they are released.  Each connection expires up to 2.5%
+     * early, so connections opened together are not all replaced together.
+     *
+     * @param millis
+     *            maximum lifetime of a connection, or zero for no limit
+     */
+    public void setMaxLifetime(long millis) {
+        connPoolImpl.setMaxLifetime(millis);
+    }
+
+    /**
+     * Opens connections until the pool holds its minimum size of them, so
+     * the first callers after startup don't pay for the database handshake.
+     * The connections are opened in parallel.  Call this right after
+     * constructing the pool.
+     *
+     * @throws SQLException
+     *             if any of the connections cannot be opened.  (The ones that
+     *             could be opened remain in the pool.)
+     */
+    public void warmUp() throws SQLException {
+        connPoolImpl.warmUp();
+    }
+
     /**
      * Returns a description of this connection pool, include the JDBC Driver
      * Name, the JDBC URL, and the user name used to log into the database.
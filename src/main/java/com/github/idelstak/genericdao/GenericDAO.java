@@ -10,6 +10,11 @@
  */
 package com.github.idelstak.genericdao;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import com.github.idelstak.genericdao.impl.AdmissionControl;
 import com.github.idelstak.genericdao.impl.GenericDAOImpl;
 
 /**
@@ -118,6 +123,7 @@ import com.github.idelstak.genericdao.impl.GenericDAOImpl;
  * <blockquote>
  *
  * <pre>
+ *     int level = Transaction.getNestingLevel();
  *     try {
  *         Transaction.begin();
  *         ...
@@ -125,11 +131,13 @@ import com.github.idelstak.genericdao.impl.GenericDAOImpl;
  *     } catch (RollbackException e) {
  *         ...
  *     } finally {
- *         if (Transaction.isActive()) Transaction.rollback();
+ *         if (Transaction.getNestingLevel() &gt; level) Transaction.rollback();
  *     }
  * </pre>
  *
  * </blockquote>
+ * Comparing nesting levels, rather than calling <code>Transaction.isActive()</code>, keeps the <code>finally</code> clause from rolling back an
+ * enclosing transaction when this one is nested (see <code>Transaction</code>).
  * <p>
  * When debugging, it may be helpful to see the SQL that is being generated. This feature is enabled via the <code>ConnectionPool</code> so that it
  * will apply to all DAOs and transactions that may be working together. For example:
@@ -149,7 +157,14 @@ import com.github.idelstak.genericdao.impl.GenericDAOImpl;
  */
 public class GenericDAO<B> {
 
+    /**
+     * Default time a call waits to be admitted when the DAO's read or write
+     * limit is reached. Value is 1 second.
+     */
+    public final static long DEFAULT_ADMISSION_TIMEOUT = 1000;
+
     private final GenericDAOImpl<B> impl;
+    private final AdmissionControl admission;
 
     /**
      * Instantiates a new <code>GenericDAO</code> object.
@@ -164,7 +179,16 @@ public class GenericDAO<B> {
      */
     public GenericDAO(Class<B> beanClass, String tableName, ConnectionPool connectionPool)
             throws DAOException {
-        impl = GenericDAOImpl.getInstance(beanClass, tableName, connectionPool);
+        this(GenericDAOImpl.getInstance(beanClass, tableName, connectionPool));
+    }
+
+    /**
+     * Wraps an implementation, creating its table if it's not there already
+     * and validating it.
+     */
+    GenericDAO(GenericDAOImpl<B> impl) throws DAOException {
+        this.impl = impl;
+        admission = new AdmissionControl(impl.getTableName(), DEFAULT_ADMISSION_TIMEOUT);
         if (!impl.tableExists()) {
             impl.createTable();
         }
@@ -191,6 +215,189 @@ public class GenericDAO<B> {
         return impl.computeDigest(bean);
     }
 
+    GenericDAOImpl<B> getImpl() {
+        return impl;
+    }
+
+    /**
+     * Gets the time a call waits to be admitted when the read or write limit
+     * is reached.
+     *
+     * @return admission timeout in milliseconds
+     */
+    public long getAdmissionTimeout() {
+        return admission.getTimeout();
+    }
+
+    /**
+     * Gets the most rows (or keys) <code>createAll()</code>,
+     * <code>readAll()</code>, <code>updateAll()</code> and
+     * <code>deleteAll()</code> send to the database at once.
+     *
+     * @return the batch size
+     */
+    public int getBatchSize() {
+        return impl.getBatchSize();
+    }
+
+    /**
+     * Gets the most writes committed together when group commit is on.
+     *
+     * @return the group size limit, or zero if group commit is off
+     */
+    public int getGroupCommitMaxWrites() {
+        return impl.getGroupCommitMaxWrites();
+    }
+
+    /**
+     * Gets how long the first write in a group waits for others when group
+     * commit is on.
+     *
+     * @return the group commit window in milliseconds, or zero if group
+     *         commit is off
+     */
+    public long getGroupCommitWindow() {
+        return impl.getGroupCommitWindow();
+    }
+
+    /**
+     * Gets the maximum number of reads (<code>read()</code>, <code>match()</code>
+     * and <code>getCount()</code> calls) on this DAO that run at once.
+     *
+     * @return the read limit, or zero if reads are not limited
+     */
+    public int getReadLimit() {
+        return admission.getReadLimit();
+    }
+
+    /**
+     * Gets the number of calls turned away with an <code>OverloadException</code>.
+     *
+     * @return count of rejected calls
+     */
+    public long getRejectedCount() {
+        return admission.getRejectedCount();
+    }
+
+    /**
+     * Gets the maximum number of writes (<code>create()</code>, <code>update()</code>
+     * and <code>delete()</code> calls) on this DAO that run at once.
+     *
+     * @return the write limit, or zero if writes are not limited
+     */
+    public int getWriteLimit() {
+        return admission.getWriteLimit();
+    }
+
+    /**
+     * Sets the time a call waits to be admitted when the read or write limit
+     * is reached.  A call that would (judging by how long calls have been
+     * taking) have to wait longer than this is turned away at once.
+     *
+     * @param millis
+     *            admission timeout in milliseconds
+     */
+    public void setAdmissionTimeout(long millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("millis is negative: " + millis);
+        }
+
+        admission.setTimeout(millis);
+    }
+
+    /**
+     * Sets the most rows (or keys) <code>createAll()</code>,
+     * <code>readAll()</code>, <code>updateAll()</code> and
+     * <code>deleteAll()</code> send to the database at once, i.e., in one
+     * statement or JDBC batch.  The default is 1000.  Larger batches save
+     * round trips but hold more memory and, in the database, may hold locks
+     * longer.  (A multi-row <code>INSERT</code>, or an <code>IN</code> list,
+     * is also kept under the database's limit on parameters per statement.)
+     *
+     * @param batchSize
+     *            the batch size
+     */
+    public void setBatchSize(int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("batchSize is not positive: " + batchSize);
+        }
+
+        impl.setBatchSize(batchSize);
+    }
+
+    /**
+     * Turns group commit on (or off) for writes made outside of a transaction.
+     * Group commit is off by default.
+     * <p>
+     * Outside of a transaction, each <code>create()</code>, <code>update()</code>
+     * and <code>delete()</code> is normally its own transaction, and the
+     * database must flush its log to disk for each one.  With group commit,
+     * writes made by many threads at about the same time are committed
+     * together: the first write waits up to <code>windowMillis</code> for
+     * others (or until there are <code>maxWrites</code>), then they are all
+     * written, in JDBC batches, in one transaction.  Each call returns when
+     * that transaction has committed.  If it fails, the writes are made again
+     * one at a time, so a call only fails if its own write does.
+     * <p>
+     * This trades a little latency (at most the window) for much higher
+     * throughput when many threads write at once.  Creates for beans whose
+     * primary key the database generates are not grouped.
+     *
+     * @param windowMillis
+     *            how long the first write in a group waits for others, in
+     *            milliseconds, or zero to turn group commit off
+     * @param maxWrites
+     *            the most writes committed together
+     */
+    public void setGroupCommit(long windowMillis, int maxWrites) {
+        if (windowMillis < 0) {
+            throw new IllegalArgumentException("windowMillis is negative: " + windowMillis);
+        }
+
+        if (windowMillis > 0 && maxWrites < 1) {
+            throw new IllegalArgumentException("maxWrites is not positive: " + maxWrites);
+        }
+
+        impl.setGroupCommit(windowMillis, maxWrites);
+    }
+
+    /**
+     * Limits the number of reads (<code>read()</code>, <code>match()</code> and
+     * <code>getCount()</code> calls) on this DAO that run at once.  Reads are
+     * not limited by default.
+     * <p>
+     * Read and write limits keep a busy table from taking every connection in
+     * a <code>ConnectionPool</code> shared with other tables.  A call over the
+     * limit waits (for at most the admission timeout) for another to finish,
+     * or is turned away with an <code>OverloadException</code>.
+     *
+     * @param limit
+     *            the read limit, or zero for no limit
+     */
+    public void setReadLimit(int limit) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("limit is negative: " + limit);
+        }
+
+        admission.setReadLimit(limit);
+    }
+
+    /**
+     * Limits the number of writes (<code>create()</code>, <code>update()</code>
+     * and <code>delete()</code> calls) on this DAO that run at once.  Writes
+     * are not limited by default.  See <code>setReadLimit()</code>.
+     *
+     * @param limit
+     *            the write limit, or zero for no limit
+     */
+    public void setWriteLimit(int limit) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("limit is negative: " + limit);
+        }
+
+        admission.setWriteLimit(limit);
+    }
+
     /**
      * Creates a new row in the table using the values provided the contents of the <code>bean</code>.
      *
@@ -209,7 +416,62 @@ public class GenericDAO<B> {
      * This is a (subclass of) <code>RollbackException</code>, so any enclosing transaction is rolled back in the process of throwing this exception.
      */
     public void create(B bean) throws RollbackException {
-        impl.create(bean);
+        AdmissionControl.Ticket ticket = admission.admitWrite();
+        try {
+            impl.create(bean);
+        } finally {
+            ticket.release();
+        }
+    }
+
+    /**
+     * Creates a new row in the table for each of the <code>beans</code>, as <code>create()</code> does, but with a few round trips to the
+     * database rather than one per bean.
+     *
+     * The rows are sent <code>getBatchSize()</code> at a time, as multi-row <code>INSERT</code>s or, if the primary key is auto-increment, as JDBC
+     * batches. (With MySQL, set <code>rewriteBatchedStatements=true</code> in the connection URL so the driver sends those as multi-row
+     * <code>INSERT</code>s, too.) In the auto-increment case, the primary key value generated by the database is stored in each bean.
+     *
+     * The rows are created in one transaction: the current thread's, if one is active, or an internal one that is committed before returning. So
+     * either all the rows are created or none are.
+     *
+     * @param beans the beans to store in the table.
+     * @throws RollbackException if the work cannot be completed for any one of a number of reasons, including SQLExceptions, deadlocks, errors
+     * accessing the beans, etc. Any enclosing transaction is rolled back in the process of throwing this exception.
+     * @throws DuplicateKeyException if any of the <code>beans</code> has a primary key value that is already in use (or used by another of the
+     * <code>beans</code>).
+     */
+    public void createAll(Collection<? extends B> beans) throws RollbackException {
+        if (beans == null) {
+            throw new NullPointerException("beans");
+        }
+
+        AdmissionControl.Ticket ticket = admission.admitWrite();
+        try {
+            impl.createAll(beans);
+        } finally {
+            ticket.release();
+        }
+    }
+
+    /**
+     * Creates a new row in the table for each of the <code>beans</code>. See <code>createAll(Collection)</code>.
+     *
+     * @param beans the beans to store in the table.
+     * @throws RollbackException if the work cannot be completed.
+     * @throws DuplicateKeyException if any of the <code>beans</code> has a primary key value that is already in use.
+     */
+    @SafeVarargs
+    public final void createAll(B... beans) throws RollbackException {
+        if (beans == null) {
+            throw new NullPointerException("beans");
+        }
+
+        List<B> list = new ArrayList<B>(beans.length);
+        for (B bean : beans) {
+            list.add(bean);
+        }
+        createAll(list);
     }
 
     /**
@@ -225,7 +487,45 @@ public class GenericDAO<B> {
      * exist in the table, first check to see if it's there using the <code>read()</code> method, inside a transaction.)
      */
     public void delete(Object... primaryKeyValues) throws RollbackException {
-        impl.delete(primaryKeyValues);
+        AdmissionControl.Ticket ticket = admission.admitWrite();
+        try {
+            impl.delete(primaryKeyValues);
+        } finally {
+            ticket.release();
+        }
+    }
+
+    /**
+     * Deletes from the table the rows with the given primary keys, as <code>delete()</code> does, but with a few round trips to the database rather
+     * than one per row.
+     *
+     * The keys are sorted and sent <code>getBatchSize()</code> at a time, in <code>DELETE ... WHERE key IN (...)</code> statements (with row values,
+     * <code>(k1, k2) IN ((...), ...)</code>, for a composite key). Sorting the keys means that transactions deleting the same rows lock them in the
+     * same order, rather than deadlocking. A key given more than once is deleted once.
+     *
+     * Keys are compared with <code>equals()</code>, but the database may treat <code>String</code>s that differ as equal (MySQL's default
+     * collations ignore case and trailing spaces), so two keys may name one row. For a key with <code>String</code> properties, therefore, a key
+     * with no row is not reported.
+     *
+     * The rows are deleted in one transaction: the current thread's, if one is active, or an internal one that is committed before returning. So
+     * either all the rows are deleted or none are.
+     *
+     * @param keys the primary keys of the rows to delete, each holding the values of the properties that comprise the primary key, as passed to
+     * <code>delete()</code>.
+     * @throws RollbackException if there are errors in the types of the key values, or if there is no row in the table for some of the keys
+     * (other than <code>String</code> keys, see above), or if there is an error accessing the database, including SQLException or deadlock.
+     */
+    public void deleteAll(Collection<Object[]> keys) throws RollbackException {
+        if (keys == null) {
+            throw new NullPointerException("keys");
+        }
+
+        AdmissionControl.Ticket ticket = admission.admitWrite();
+        try {
+            impl.deleteAll(keys);
+        } finally {
+            ticket.release();
+        }
     }
 
     /**
@@ -239,7 +539,12 @@ public class GenericDAO<B> {
      * @throws RollbackException if there is an error accessing the database, including SQLException or deadlock.
      */
     public int getCount() throws RollbackException {
-        return impl.getBeanCount();
+        AdmissionControl.Ticket ticket = admission.admitRead();
+        try {
+            return impl.getBeanCount();
+        } finally {
+            ticket.release();
+        }
     }
 
     /**
@@ -251,6 +556,8 @@ public class GenericDAO<B> {
      *
      * If there is an enclosing transaction active on this thread when this method is called, the rows in the table that match be locked by the
      * transaction preventing other transactions from reading or writing these rows until the enclosing transaction is committed or rolled back.
+     * A read-only transaction (see <code>Transaction.beginReadOnly()</code>) does not lock them. To choose how they are locked, use
+     * <code>match(LockMode, MatchArg...)</code>.
      *
      * @param constraints zero or more constraints, all of which must be <code>true</code> for each bean returned by this call.
      * @return an array of beans that match the given constraints. If no beans match the constraints, a zero length array is returned. (This method
@@ -259,14 +566,41 @@ public class GenericDAO<B> {
      * SQLException or deadlock.
      */
     public B[] match(MatchArg... constraints) throws RollbackException {
-        return impl.match(constraints);
+        AdmissionControl.Ticket ticket = admission.admitRead();
+        try {
+            return impl.match(constraints);
+        } finally {
+            ticket.release();
+        }
+    }
+
+    /**
+     * Searches the table for rows matching the given constraints, like <code>match(MatchArg...)</code>, but locks the rows found as
+     * <code>lockMode</code> says rather than as the transaction's default (exclusive locks, or none in a read-only transaction). Outside of a
+     * transaction, no rows are locked.
+     *
+     * @param lockMode how the rows found are locked by the enclosing transaction.
+     * @param constraints zero or more constraints, all of which must be <code>true</code> for each bean returned by this call.
+     * @return an array of beans that match the given constraints (never <code>null</code>).
+     * @throws RollbackException if there are errors in the types of the arguments, if there is an error accessing the database, including
+     * SQLException or deadlock (or, with <code>EXCLUSIVE_NOWAIT</code>, a row locked by another transaction), or if asked to lock rows in a
+     * read-only transaction.
+     */
+    public B[] match(LockMode lockMode, MatchArg... constraints) throws RollbackException {
+        AdmissionControl.Ticket ticket = admission.admitRead();
+        try {
+            return impl.match(lockMode, constraints);
+        } finally {
+            ticket.release();
+        }
     }
 
     /**
      * Returns the row in the table with the given primary key.
      *
      * If there is an enclosing transaction active on this thread when this method is called, the row in the table will be locked by the transaction
-     * preventing other transactions from reading or writing this row until the enclosing transaction is committed or rolled back.
+     * preventing other transactions from reading or writing this row until the enclosing transaction is committed or rolled back (unless it is a
+     * read-only transaction).
      *
      * @param primaryKeyValues the values of the properties that comprise the primary key for bean being looked up.
      * @return a reference to an instance of <code>B</code> with the given primary key and values populated from the table. If there is no such row,
@@ -275,7 +609,41 @@ public class GenericDAO<B> {
      * SQLException or deadlock.
      */
     public B read(Object... primaryKeyValues) throws RollbackException {
-        return impl.read(primaryKeyValues);
+        AdmissionControl.Ticket ticket = admission.admitRead();
+        try {
+            return impl.read(primaryKeyValues);
+        } finally {
+            ticket.release();
+        }
+    }
+
+    /**
+     * Returns the rows in the table with the given primary keys, as <code>read()</code> does for each, but with a few queries rather than one per
+     * key.
+     *
+     * The keys are sorted and looked up <code>getBatchSize()</code> at a time (fewer if the database's limit on parameters per statement requires
+     * it), in <code>SELECT ... WHERE key IN (...)</code> queries (with row values, <code>(k1, k2) IN ((...), ...)</code>, for a composite key). As
+     * with <code>read()</code>, if there is an enclosing transaction, the rows are locked by it (unless it is a read-only transaction); sorting the
+     * keys means that transactions reading the same rows lock them in the same order, rather than deadlocking.
+     *
+     * @param keys the primary keys of the rows to look up, each holding the values of the properties that comprise the primary key, as passed to
+     * <code>read()</code>.
+     * @return an array with an instance of <code>B</code> for each of the <code>keys</code>, in the same order, or <code>null</code> where there is
+     * no row with the key.
+     * @throws RollbackException if there are errors in the types of the key values, or if there is an error accessing the database, including
+     * SQLException or deadlock.
+     */
+    public B[] readAll(Collection<Object[]> keys) throws RollbackException {
+        if (keys == null) {
+            throw new NullPointerException("keys");
+        }
+
+        AdmissionControl.Ticket ticket = admission.admitRead();
+        try {
+            return impl.readAll(keys);
+        } finally {
+            ticket.release();
+        }
     }
 
     /**
@@ -290,6 +658,39 @@ public class GenericDAO<B> {
      * @throws RollbackException if there is an error accessing the database, including SQLException or deadlock.
      */
     public void update(B bean) throws RollbackException {
-        impl.update(bean);
+        AdmissionControl.Ticket ticket = admission.admitWrite();
+        try {
+            impl.update(bean);
+        } finally {
+            ticket.release();
+        }
+    }
+
+    /**
+     * Updates the rows in the table for all the <code>beans</code>, as <code>update()</code> does, but with a few round trips to the database
+     * rather than one per bean.
+     *
+     * The rows are sent <code>getBatchSize()</code> at a time, as JDBC batches, and the database's count for each row is checked, so a bean whose
+     * row is not in the table causes <code>RollbackException</code>. The rows are updated in primary key order, so that transactions updating the
+     * same rows lock them in the same order, rather than deadlocking. If two beans have the same primary key, the later one's values are stored.
+     *
+     * The rows are updated in one transaction: the current thread's, if one is active, or an internal one that is committed before returning. So
+     * either all the rows are updated or none are.
+     *
+     * @param beans the beans whose values to store in the table.
+     * @throws RollbackException if there is no row in the table for one of the <code>beans</code>, or if there is an error accessing the
+     * database, including SQLException or deadlock.
+     */
+    public void updateAll(Collection<? extends B> beans) throws RollbackException {
+        if (beans == null) {
+            throw new NullPointerException("beans");
+        }
+
+        AdmissionControl.Ticket ticket = admission.admitWrite();
+        try {
+            impl.updateAll(beans);
+        } finally {
+            ticket.release();
+        }
     }
 }
@@ -0,0 +1,52 @@
+/*
+ * Copyright (c) 2012-2016 Jeffrey L. Eppinger.  All Rights Reserved.
+ *     You may use, modify and share this code for non-commercial purposes
+ *     as long a you comply with this license from Creative Commons:
+ *     Summary of license: http://creativecommons.org/licenses/by-nc-sa/3.0
+ *     Full Text of License: http://creativecommons.org/licenses/by-nc-sa/3.0/legalcode
+ *     Specifically, if you distribute your code for non-educational purposes,
+ *     you must include this copyright notice in your work.
+ *     If you wish to have broader rights, you must contact the copyright holder.
+ */
+package com.github.idelstak.genericdao;
+
+/**
+ * How the rows found by <code>GenericDAO.match()</code> are locked by the
+ * enclosing transaction.  Locks are held until the transaction is committed
+ * or rolled back, so outside of a transaction no rows are locked, whatever
+ * the lock mode.
+ * <p>
+ * By default, <code>match()</code> and <code>read()</code> lock the rows they
+ * find with <code>EXCLUSIVE</code> in a transaction, and do not lock them at
+ * all in a read-only transaction (see
+ * <code>Transaction.beginReadOnly()</code>).
+ */
+public enum LockMode {
+    /**
+     * No locks.  Other transactions may change the rows before this one
+     * ends.
+     */
+    NONE,
+    /**
+     * Shared locks (<code>FOR SHARE</code>).  Other transactions may read and
+     * share-lock the rows, but not change them, until this one ends.
+     */
+    SHARED,
+    /**
+     * Exclusive locks (<code>FOR UPDATE</code>).  Other transactions may not
+     * lock or change the rows until this one ends.
+     */
+    EXCLUSIVE,
+    /**
+     * Exclusive locks, failing (with <code>RollbackException</code>) rather
+     * than waiting if another transaction holds a lock on any of the rows
+     * (<code>FOR UPDATE NOWAIT</code>).
+     */
+    EXCLUSIVE_NOWAIT,
+    /**
+     * Exclusive locks, leaving out the rows another transaction holds a lock
+     * on rather than waiting for them (<code>FOR UPDATE SKIP LOCKED</code>).
+     * Useful for taking work from a queue table.
+     */
+    EXCLUSIVE_SKIP_LOCKED
+}
@@ -0,0 +1,26 @@
+/*
+ * Copyright (c) 2012-2016 Jeffrey L. Eppinger.  All Rights Reserved.
+ *     You may use, modify and share this code for non-commercial purposes
+ *     as long a you comply with this license from Creative Commons:
+ *     Summary of license: http://creativecommons.org/licenses/by-nc-sa/3.0
+ *     Full Text of License: http://creativecommons.org/licenses/by-nc-sa/3.0/legalcode
+ *     Specifically, if you distribute your code for non-educational purposes,
+ *     you must include this copyright notice in your work.
+ *     If you wish to have broader rights, you must contact the copyright holder.
+ */
+package com.github.idelstak.genericdao;
+
+/**
+ * Thrown when a <tt>GenericDAO</tt> turns a call away because too many calls
+ * on its table are already running and the call would have to wait longer
+ * than the DAO's admission timeout.  Like any <tt>RollbackException</tt>, the
+ * enclosing transaction (if any) is rolled back.  The call may succeed if
+ * retried later.
+ */
+public class OverloadException extends RollbackException {
+	private static final long serialVersionUID = 1L;
+
+	public OverloadException(String message) {
+		super(message);
+	}
+}
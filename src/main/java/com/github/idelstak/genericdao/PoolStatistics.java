@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2012-2016 Jeffrey L. Eppinger.  All Rights Reserved.
+ *     You may use, modify and share this code for non-commercial purposes
+ *     as long a you comply with this license from Creative Commons:
+ *     Summary of license: http://creativecommons.org/licenses/by-nc-sa/3.0
+ *     Full Text of License: http://creativecommons.org/licenses/by-nc-sa/3.0/legalcode
+ *     Specifically, if you distribute your code for non-educational purposes,
+ *     you must include this copyright notice in your work.
+ *     If you wish to have broader rights, you must contact the copyright holder.
+ */
+package com.github.idelstak.genericdao;
+
+/**
+ * Statistics describing how a <tt>ConnectionPool</tt> has behaved.
+ * <p>
+ * Counts are since the pool was created.  Times are in milliseconds.
+ * Percentiles are approximate (to within 25%).  Connection counts are
+ * gauges and may be momentarily inconsistent with each other while threads
+ * are borrowing and releasing connections.
+ *
+ * @see ConnectionPool#getStatistics()
+ * @see ConnectionPoolMXBean
+ */
+public interface PoolStatistics {
+
+    /**
+     * @return the number of connections currently open
+     */
+    int getTotalConnections();
+
+    /**
+     * @return the number of connections currently handed out
+     */
+    int getActiveConnections();
+
+    /**
+     * @return the number of open connections not handed out
+     */
+    int getIdleConnections();
+
+    /**
+     * @return the number of threads waiting for a connection
+     */
+    int getPendingThreads();
+
+    /**
+     * @return the number of connections that may be handed out at once (the
+     *         maximum size, unless the pool sizes itself adaptively), or zero
+     *         if the pool is unbounded
+     */
+    int getConcurrencyLimit();
+
+    /**
+     * @return the number of connections handed out
+     */
+    long getBorrowCount();
+
+    /**
+     * @return the number of times a thread gave up waiting for a connection
+     */
+    long getBorrowTimeoutCount();
+
+    /**
+     * @return the number of connections opened
+     */
+    long getConnectionsCreated();
+
+    /**
+     * @return the number of connections closed because they were idle too
+     *         long or reached their max lifetime
+     */
+    long getConnectionsEvicted();
+
+    /**
+     * @return the number of connections closed because they failed (or the
+     *         database did)
+     */
+    long getConnectionsDiscarded();
+
+    /**
+     * @return the number of connections that were held longer than the leak
+     *         detection threshold
+     */
+    long getLeaksDetected();
+
+    /**
+     * @return the number of leaked connections the pool took back
+     */
+    long getLeaksReclaimed();
+
+    /**
+     * @return the number of prepared statements found in a statement cache
+     */
+    long getStatementCacheHits();
+
+    /**
+     * @return the number of prepared statements not found in a statement cache
+     */
+    long getStatementCacheMisses();
+
+    double getBorrowWaitMeanMillis();
+
+    double getBorrowWaitP50Millis();
+
+    double getBorrowWaitP95Millis();
+
+    double getBorrowWaitP99Millis();
+
+    double getBorrowWaitMaxMillis();
+
+    double getConnectionCreationMeanMillis();
+
+    double getConnectionCreationP99Millis();
+
+    double getConnectionCreationMaxMillis();
+
+    /**
+     * @return the mean time between a connection being handed out and it
+     *         being released (or closed)
+     */
+    double getUsageMeanMillis();
+
+    double getUsageP50Millis();
+
+    double getUsageP95Millis();
+
+    double getUsageP99Millis();
+
+    double getUsageMaxMillis();
+}
@@ -0,0 +1,379 @@
+/*
+ * Copyright (c) 2012-2016 Jeffrey L. Eppinger.  All Rights Reserved.
+ *     You may use, modify and share this code for non-commercial purposes
+ *     as long a you comply with this license from Creative Commons:
+ *     Summary of license: http://creativecommons.org/licenses/by-nc-sa/3.0
+ *     Full Text of License: http://creativecommons.org/licenses/by-nc-sa/3.0/legalcode
+ *     Specifically, if you distribute your code for non-educational purposes,
+ *     you must include this copyright notice in your work.
+ *     If you wish to have broader rights, you must contact the copyright holder.
+ */
+package com.github.idelstak.genericdao;
+
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.github.idelstak.genericdao.impl.HedgedReads;
+
+/**
+ * A connection pool for a primary database that sends reads to replicas.
+ * <p>
+ * The pool itself connects to the primary, and is configured like any other
+ * <tt>ConnectionPool</tt>.  Each replica is a separate <tt>ConnectionPool</tt>
+ * with its own settings.  <tt>read()</tt>, <tt>match()</tt> and
+ * <tt>getBeanCount()</tt> calls made outside of a transaction get their
+ * connection from a replica (see <tt>getReadConnection()</tt>), as do
+ * transactions begun with <tt>Transaction.beginReadOnly()</tt>.  Everything
+ * else, including every call made inside any other transaction, uses the
+ * primary.  So a read/write transaction always reads its own writes, but a
+ * read outside of one may not yet see a write that was just committed (if
+ * the replica is lagging).
+ * <p>
+ * If a replica cannot hand out a connection right away (all of its
+ * connections are in use, or it is down), the others are tried, and then the
+ * primary, which waits as usual.
+ * <p>
+ * Reads can optionally be hedged (see <tt>setHedgedReads()</tt>): a read
+ * that a replica has not answered within the hedge delay is also sent to a
+ * second replica, and the first answer is used.  This trims the latency of
+ * the slowest reads, at the cost of running a few of them twice.
+ */
+public class ReplicatedConnectionPool extends ConnectionPool {
+
+    /**
+     * How a replica is chosen for each read.
+     */
+    public enum ReplicaSelection {
+        /**
+         * Each replica in turn.
+         */
+        ROUND_ROBIN,
+        /**
+         * The replica with the fewest connections handed out.  Favors
+         * replicas that are answering quickly.
+         */
+        LEAST_OUTSTANDING
+    }
+
+    private final ConnectionPool[] replicas;
+    private final HedgedReads hedgedReads = new HedgedReads(this, new HedgedReads.Borrower() {
+        public int choose(int avoid) {
+            return chooseReplica(avoid);
+        }
+
+        public Connection borrow(int first, int avoid) throws SQLException {
+            return borrowReadConnection(first, avoid);
+        }
+
+        public int replicaOf(Connection c) {
+            return ReplicatedConnectionPool.this.replicaOf(c);
+        }
+    });
+    private final AtomicInteger next = new AtomicInteger();
+    private volatile ReplicaSelection replicaSelection = ReplicaSelection.ROUND_ROBIN;
+
+    /**
+     * Creates an (unbounded) pool for the primary database.
+     *
+     * @param jdbcDriverName the JDBC Driver Name
+     * @param jdbcURL the JDBC URL of the primary
+     * @param user the user name used to log into the primary (can be null)
+     * @param password the password used to log into the primary (can be null)
+     * @param replicas the pools reads are sent to
+     */
+    public ReplicatedConnectionPool(String jdbcDriverName, String jdbcURL, String user, String password,
+            ConnectionPool... replicas) {
+        this(jdbcDriverName, jdbcURL, user, password, 0, 0, DEFAULT_BORROW_TIMEOUT, replicas);
+    }
+
+    /**
+     * Creates a bounded pool for the primary database.
+     *
+     * @param jdbcDriverName the JDBC Driver Name
+     * @param jdbcURL the JDBC URL of the primary
+     * @param user the user name used to log into the primary (can be null)
+     * @param password the password used to log into the primary (can be null)
+     * @param minSize the number of primary connections the pool keeps open
+     *            even when they are idle
+     * @param maxSize the maximum number of primary connections handed out at
+     *            once, or zero for no limit
+     * @param borrowTimeout the time in milliseconds <tt>getConnection()</tt>
+     *            waits for a primary connection when all <tt>maxSize</tt> are
+     *            in use before throwing <tt>SQLException</tt>
+     * @param replicas the pools reads are sent to
+     */
+    public ReplicatedConnectionPool(String jdbcDriverName, String jdbcURL, String user, String password,
+            int minSize, int maxSize, long borrowTimeout, ConnectionPool... replicas) {
+        super(jdbcDriverName, jdbcURL, user, password, minSize, maxSize, borrowTimeout);
+
+        if (replicas == null) {
+            throw new NullPointerException("replicas");
+        }
+
+        for (int i = 0; i < replicas.length; i++) {
+            if (replicas[i] == null) {
+                throw new NullPointerException("replicas[" + i + "]");
+            }
+            if (replicas[i] instanceof ReplicatedConnectionPool) {
+                throw new IllegalArgumentException("replicas[" + i + "] is itself replicated");
+            }
+        }
+
+        this.replicas = replicas.clone();
+    }
+
+    /**
+     * Gets a connection from one of the replicas, chosen according to the
+     * replica selection.  If it cannot hand out a connection right away, the
+     * other replicas are tried, and then the primary.
+     *
+     * @return a JDBC SQL Connection
+     * @throws SQLException
+     *             if no replica can hand out a connection and neither can
+     *             the primary
+     */
+    @Override
+    public Connection getReadConnection() throws SQLException {
+        if (Transaction.isActive()) {
+            throw new AssertionError(
+                    "Cannot get separate connections during a transaction.  Try using getTransactionConnection().");
+        }
+
+        return borrowReadConnection();
+    }
+
+    @Override
+    Connection borrowReadConnection() throws SQLException {
+        return borrowReadConnection(chooseReplica(-1), -1);
+    }
+
+    /**
+     * Borrows a read connection, trying the replicas from <tt>first</tt> on,
+     * but not <tt>avoid</tt> (e.g., the one a hedged read is waiting on),
+     * falling back to the primary.
+     */
+    private Connection borrowReadConnection(int first, int avoid) throws SQLException {
+        int n = replicas.length;
+        for (int i = 0; i < n; i++) {
+            int r = (first + i) % n;
+            if (r == avoid) {
+                continue;
+            }
+            ConnectionPool replica = replicas[r];
+            try {
+                // Don't wait on a busy replica: the next one (or the
+                // primary) may have a connection free now
+                return replica.borrowReadConnection(0);
+            } catch (SQLException e) {
+                PrintWriter debug = getDebugWriter();
+                if (debug != null) {
+                    debug.println("borrowReadConnection: replica " + replica.getURL() + " failed: " + e.getMessage());
+                }
+            }
+        }
+
+        return super.borrowReadConnection();
+    }
+
+    /**
+     * Runs a read on a replica connection, hedging it if hedged reads are on.
+     * This is how GenericDAO runs <tt>read()</tt> and <tt>match()</tt> outside
+     * of a transaction.
+     *
+     * @param <T> the type of the read's result
+     * @param op the read
+     * @return the result of the read (the first result, if it was hedged)
+     * @throws SQLException
+     *             if a connection cannot be obtained or the read fails
+     */
+    @Override
+    public <T> T executeRead(ReadOperation<T> op) throws SQLException {
+        if (Transaction.isActive()) {
+            throw new AssertionError("Cannot run separate reads during a transaction.");
+        }
+
+        return hedgedReads.execute(op);
+    }
+
+    /**
+     * Gets the time a read waits for a replica before it is hedged.
+     *
+     * @return hedge delay in milliseconds, or zero if the delay is learned
+     */
+    public long getHedgeDelay() {
+        return hedgedReads.getDelay();
+    }
+
+    /**
+     * Gets the number of reads that have been hedged.
+     *
+     * @return count of hedged reads
+     */
+    public long getHedgesFired() {
+        return hedgedReads.getHedgesFired();
+    }
+
+    /**
+     * Gets the number of hedged reads that were answered first by the second
+     * replica.  Compared to <tt>getHedgesFired()</tt>, this shows whether
+     * hedging is paying off.
+     *
+     * @return count of hedges won
+     */
+    public long getHedgesWon() {
+        return hedgedReads.getHedgesWon();
+    }
+
+    /**
+     * Gets the pools reads are sent to.
+     *
+     * @return the replica pools, in the order given to the constructor
+     */
+    public ConnectionPool[] getReplicas() {
+        return replicas.clone();
+    }
+
+    /**
+     * Tells whether reads are hedged.
+     *
+     * @return true if hedged reads are on
+     */
+    public boolean isHedgedReads() {
+        return hedgedReads.isEnabled();
+    }
+
+    /**
+     * Gets how a replica is chosen for each read.
+     *
+     * @return the replica selection
+     */
+    public ReplicaSelection getReplicaSelection() {
+        return replicaSelection;
+    }
+
+    /**
+     * Returns a connection to the pool it came from: the primary or one of the
+     * replicas.
+     *
+     * @param c connection to return to the connection pool.
+     */
+    @Override
+    public void releaseConnection(Connection c) {
+        for (ConnectionPool replica : replicas) {
+            if (replica.owns(c)) {
+                replica.releaseConnection(c);
+                return;
+            }
+        }
+
+        super.releaseConnection(c);
+    }
+
+    /**
+     * Sets the time a read waits for a replica before it is hedged.  A delay
+     * of zero (the default) means the delay is learned: it's the 95th
+     * percentile of the replicas' read times so far.  Until enough reads
+     * have been seen, they are not hedged.
+     *
+     * @param millis
+     *            hedge delay in milliseconds, or zero to learn it
+     */
+    public void setHedgeDelay(long millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("millis is negative: " + millis);
+        }
+
+        hedgedReads.setDelay(millis);
+    }
+
+    /**
+     * Turns hedged reads on or off.  They are off by default.  Hedging needs
+     * at least two replicas.
+     *
+     * @param hedge
+     *            true to hedge reads
+     */
+    public void setHedgedReads(boolean hedge) {
+        hedgedReads.setEnabled(hedge);
+    }
+
+    /**
+     * Sets how a replica is chosen for each read.  The default is
+     * <tt>ROUND_ROBIN</tt>.
+     *
+     * @param selection
+     *            the replica selection
+     */
+    public void setReplicaSelection(ReplicaSelection selection) {
+        if (selection == null) {
+            throw new NullPointerException("selection");
+        }
+
+        replicaSelection = selection;
+    }
+
+    @Override
+    boolean owns(Connection c) {
+        if (super.owns(c)) {
+            return true;
+        }
+
+        for (ConnectionPool replica : replicas) {
+            if (replica.owns(c)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the index of the replica a connection came from, or -1 if it
+     * came from the primary.
+     */
+    private int replicaOf(Connection c) {
+        for (int i = 0; i < replicas.length; i++) {
+            if (replicas[i].owns(c)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the index of the replica to try first, other than
+     * <tt>avoid</tt> (unless it's the only one).
+     */
+    private int chooseReplica(int avoid) {
+        int n = replicas.length;
+        if (n == 0) {
+            return 0;
+        }
+
+        // Also the starting point for LEAST_OUTSTANDING, so that idle
+        // replicas share the load rather than the first one taking it all
+        int start = Math.floorMod(next.getAndIncrement(), n);
+        if (start == avoid && n > 1) {
+            start = (start + 1) % n;
+        }
+        if (replicaSelection == ReplicaSelection.ROUND_ROBIN) {
+            return start;
+        }
+
+        int best = start;
+        int bestActive = replicas[start].getActiveCount();
+        for (int i = 1; i < n && bestActive > 0; i++) {
+            int r = (start + i) % n;
+            if (r == avoid) {
+                continue;
+            }
+            int active = replicas[r].getActiveCount();
+            if (active < bestActive) {
+                best = r;
+                bestActive = active;
+            }
+        }
+        return best;
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2012-2016 Jeffrey L. Eppinger.  All Rights Reserved.
+ *     You may use, modify and share this code for non-commercial purposes
+ *     as long a you comply with this license from Creative Commons:
+ *     Summary of license: http://creativecommons.org/licenses/by-nc-sa/3.0
+ *     Full Text of License: http://creativecommons.org/licenses/by-nc-sa/3.0/legalcode
+ *     Specifically, if you distribute your code for non-educational purposes,
+ *     you must include this copyright notice in your work.
+ *     If you wish to have broader rights, you must contact the copyright holder.
+ */
+package com.github.idelstak.genericdao;
+
+import java.util.Arrays;
+
+/**
+ * Decides which shard a row belongs in, from its primary key.  Used by
+ * <tt>ShardedGenericDAO</tt>.
+ * <p>
+ * A shard function must always give the same answer for the same key
+ * (including in other JVMs and after a restart), or rows will be looked for
+ * on the wrong shard.
+ */
+public interface ShardFunction {
+
+    /**
+     * Turns a primary key value into the one to hash (see <tt>hash()</tt>).
+     */
+    interface Normalizer {
+        /**
+         * Returns the value to hash.  Values the database takes as equal must
+         * give equal results.
+         *
+         * @param value a primary key value
+         * @return the value to hash in its place
+         */
+        Object normalize(Object value);
+    }
+
+    /**
+     * Spreads rows by hashing their primary key values.  Uses the values'
+     * <tt>hashCode()</tt>, which is the same in every JVM for numbers,
+     * strings and dates (the usual primary key types).
+     * <p>
+     * Strings are hashed as they are, but the database may take strings that
+     * differ as equal: MySQL's default collations ignore case and trailing
+     * spaces, so "Bob" and "bob " are one key to the database but may go to
+     * different shards, where the row could be created twice and not found
+     * by <tt>read()</tt>.  Use <tt>HASH</tt> for <tt>String</tt> keys only
+     * if the application normalizes them (or the columns have a binary
+     * collation); otherwise use <tt>hash()</tt>.
+     */
+    ShardFunction HASH = new ShardFunction() {
+        public int getShard(Object[] primaryKeyValues, int shardCount) {
+            return Math.floorMod(Arrays.hashCode(primaryKeyValues), shardCount);
+        }
+    };
+
+    /**
+     * Returns a shard function like <tt>HASH</tt> that hashes each primary
+     * key value as normalized, so that keys the database takes as equal go
+     * to the same shard.  E.g., for case-insensitive <tt>String</tt> keys:
+     *
+     * <pre>
+     * ShardFunction.hash(new ShardFunction.Normalizer() {
+     *     public Object normalize(Object value) {
+     *         if (!(value instanceof String)) return value;
+     *         return ((String) value).replaceAll(" +$", "").toLowerCase(Locale.ROOT);
+     *     }
+     * })
+     * </pre>
+     *
+     * @param normalizer turns each value into the one to hash
+     * @return the shard function
+     */
+    static ShardFunction hash(final Normalizer normalizer) {
+        if (normalizer == null) {
+            throw new NullPointerException("normalizer");
+        }
+
+        return new ShardFunction() {
+            public int getShard(Object[] primaryKeyValues, int shardCount) {
+                Object[] normalized = new Object[primaryKeyValues.length];
+                for (int i = 0; i < normalized.length; i++) {
+                    normalized[i] = normalizer.normalize(primaryKeyValues[i]);
+                }
+                return HASH.getShard(normalized, shardCount);
+            }
+        };
+    }
+
+    /**
+     * Returns the shard for a row.
+     *
+     * @param primaryKeyValues the values of the row's primary key
+     *            properties, in the order <tt>read()</tt> takes them
+     * @param shardCount the number of shards
+     * @return the index of the row's shard, from 0 to
+     *         <tt>shardCount - 1</tt>
+     */
+    int getShard(Object[] primaryKeyValues, int shardCount);
+}
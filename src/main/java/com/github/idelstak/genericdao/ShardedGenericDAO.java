@@ -0,0 +1,280 @@
+/*
+ * Copyright (c) 2012-2016 Jeffrey L. Eppinger.  All Rights Reserved.
+ *     You may use, modify and share this code for non-commercial purposes
+ *     as long a you comply with this license from Creative Commons:
+ *     Summary of license: http://creativecommons.org/licenses/by-nc-sa/3.0
+ *     Full Text of License: http://creativecommons.org/licenses/by-nc-sa/3.0/legalcode
+ *     Specifically, if you distribute your code for non-educational purposes,
+ *     you must include this copyright notice in your work.
+ *     If you wish to have broader rights, you must contact the copyright holder.
+ */
+package com.github.idelstak.genericdao;
+
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import com.github.idelstak.genericdao.impl.FanOut;
+
+/**
+ * A <code>GenericDAO</code> whose table is split across several databases
+ * (shards).
+ * <p>
+ * Each row lives in exactly one shard, chosen by a <code>ShardFunction</code>
+ * from its primary key.  <code>create()</code>, <code>read()</code>,
+ * <code>update()</code> and <code>delete()</code> go to that shard alone.
+ * <code>match()</code> and <code>getCount()</code> run on every shard in
+ * parallel, and their results are combined.
+ * <p>
+ * Because the shard must be known before a row is created, beans whose
+ * primary key is generated by the database (a single <code>int</code> or
+ * <code>long</code> property) cannot be sharded.
+ * <p>
+ * A transaction can only involve one connection pool, so it can only work
+ * with rows in one shard.  For the same reason, <code>match()</code> and
+ * <code>getCount()</code> cannot be called in a transaction.
+ *
+ * @see ShardFunction
+ */
+public class ShardedGenericDAO<B> {
+
+    private final Class<B> beanClass;
+    private final List<GenericDAO<B>> shards;
+    private final ShardFunction shardFunction;
+
+    /**
+     * Creates a DAO that spreads rows across the shards by hashing their
+     * primary keys (see <code>ShardFunction.HASH</code>, which needs
+     * <code>String</code> keys normalized the way the database compares
+     * them).
+     *
+     * @param beanClass the class description of the bean.
+     * @param tableName the name of the table (in every shard) used to store
+     *            instances of the bean.
+     * @param shards the connection pools for the shards.
+     * @throws DAOException if there are any problems, including problems
+     *             accessing the databases, problems with the bean class, or
+     *             a primary key generated by the database.
+     */
+    public ShardedGenericDAO(Class<B> beanClass, String tableName, ConnectionPool... shards)
+            throws DAOException {
+        this(beanClass, tableName, ShardFunction.HASH, shards);
+    }
+
+    /**
+     * Creates a DAO that spreads rows across the shards with the given shard
+     * function.  As with <code>GenericDAO</code>, the table is created in each
+     * shard where it's not there already.
+     *
+     * @param beanClass the class description of the bean.
+     * @param tableName the name of the table (in every shard) used to store
+     *            instances of the bean.
+     * @param shardFunction decides which shard each row belongs in.
+     * @param shards the connection pools for the shards.  The order matters:
+     *            the shard function's result is an index into it.
+     * @throws DAOException if there are any problems, including problems
+     *             accessing the databases, problems with the bean class, or
+     *             a primary key generated by the database.
+     */
+    public ShardedGenericDAO(Class<B> beanClass, String tableName, ShardFunction shardFunction,
+            ConnectionPool... shards) throws DAOException {
+        if (shardFunction == null) {
+            throw new NullPointerException("shardFunction");
+        }
+
+        if (shards == null) {
+            throw new NullPointerException("shards");
+        }
+
+        if (shards.length == 0) {
+            throw new IllegalArgumentException("No shards");
+        }
+
+        this.beanClass = beanClass;
+        this.shardFunction = shardFunction;
+        this.shards = new ArrayList<GenericDAO<B>>(shards.length);
+        for (ConnectionPool cp : shards) {
+            GenericDAO<B> dao = new GenericDAO<B>(beanClass, tableName, cp);
+            if (dao.getImpl().isAutoIncrement()) {
+                throw new DAOException("Cannot shard " + tableName
+                        + ": its primary key is generated by the database");
+            }
+            this.shards.add(dao);
+        }
+    }
+
+    /**
+     * Creates a new row, in the shard for the bean's primary key.
+     *
+     * @param bean an instance of type <code>B</code> that contains the values
+     *            to store in the table.
+     * @throws RollbackException if the work cannot be completed.  See
+     *             <code>GenericDAO.create()</code>.
+     * @throws DuplicateKeyException if the primary key value is already in use.
+     */
+    public void create(B bean) throws RollbackException {
+        shardFor(bean).create(bean);
+    }
+
+    /**
+     * Deletes the row with the given primary key from its shard.
+     *
+     * @param primaryKeyValues the values of the properties that comprise the
+     *            primary key for bean being deleted.
+     * @throws RollbackException if there is no bean with this primary key,
+     *             or the work cannot be completed.  See
+     *             <code>GenericDAO.delete()</code>.
+     */
+    public void delete(Object... primaryKeyValues) throws RollbackException {
+        shardFor(primaryKeyValues).delete(primaryKeyValues);
+    }
+
+    /**
+     * Returns the number of rows in the table, summed over all the shards.
+     *
+     * @return the number of rows in the table.
+     * @throws RollbackException if there is an error accessing a database, or
+     *             if called in a transaction.
+     */
+    public int getCount() throws RollbackException {
+        checkNotInTransaction("getCount()");
+
+        List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>(shards.size());
+        for (final GenericDAO<B> dao : shards) {
+            tasks.add(new Callable<Integer>() {
+                public Integer call() throws RollbackException {
+                    return dao.getCount();
+                }
+            });
+        }
+
+        int count = 0;
+        for (int n : FanOut.invokeAll(tasks)) {
+            count += n;
+        }
+        return count;
+    }
+
+    /**
+     * Returns the DAO for one shard, e.g., to work with a particular shard's
+     * rows in a transaction.
+     *
+     * @param index the index of the shard (into the pools passed to the
+     *            constructor)
+     * @return the shard's DAO
+     */
+    public GenericDAO<B> getShard(int index) {
+        return shards.get(index);
+    }
+
+    /**
+     * Returns the number of shards.
+     *
+     * @return the number of shards
+     */
+    public int getShardCount() {
+        return shards.size();
+    }
+
+    /**
+     * Searches every shard for rows matching the given constraints.  See
+     * <code>GenericDAO.match()</code>.  The rows are returned shard by shard.
+     * Max and min constraints are not supported, as each shard would apply
+     * them to its own rows only.
+     *
+     * @param constraints zero or more constraints, all of which must be
+     *            <code>true</code> for each bean returned by this call.
+     * @return an array of beans that match the given constraints (never
+     *         <code>null</code>).
+     * @throws RollbackException if there are errors in the types of the
+     *             arguments, if there is an error accessing a database, if
+     *             there is a max or min constraint, or if called in a
+     *             transaction.
+     */
+    public B[] match(final MatchArg... constraints) throws RollbackException {
+        checkNotInTransaction("match()");
+        if (shards.get(0).getImpl().containsMaxOrMin(constraints)) {
+            rollbackAndThrow("Max and min constraints are not supported across shards");
+        }
+
+        List<Callable<B[]>> tasks = new ArrayList<Callable<B[]>>(shards.size());
+        for (final GenericDAO<B> dao : shards) {
+            tasks.add(new Callable<B[]>() {
+                public B[] call() throws RollbackException {
+                    return dao.match(constraints);
+                }
+            });
+        }
+
+        List<B[]> results = FanOut.invokeAll(tasks);
+        int length = 0;
+        for (B[] beans : results) {
+            length += beans.length;
+        }
+
+        @SuppressWarnings("unchecked")
+        B[] answer = (B[]) Array.newInstance(beanClass, length);
+        int pos = 0;
+        for (B[] beans : results) {
+            System.arraycopy(beans, 0, answer, pos, beans.length);
+            pos += beans.length;
+        }
+        return answer;
+    }
+
+    /**
+     * Returns the row with the given primary key, from its shard.
+     *
+     * @param primaryKeyValues the values of the properties that comprise the
+     *            primary key for bean being looked up.
+     * @return the bean, or <code>null</code> if there is no such row.
+     * @throws RollbackException if there are errors in the types of the
+     *             arguments, or if there is an error accessing the database.
+     */
+    public B read(Object... primaryKeyValues) throws RollbackException {
+        return shardFor(primaryKeyValues).read(primaryKeyValues);
+    }
+
+    /**
+     * Updates the row with the bean's primary key, in its shard.  See
+     * <code>GenericDAO.update()</code>.
+     *
+     * @param bean an instance of type <code>B</code> that contains the values
+     *            to store in the table.
+     * @throws RollbackException if there is an error accessing the database.
+     */
+    public void update(B bean) throws RollbackException {
+        shardFor(bean).update(bean);
+    }
+
+    private GenericDAO<B> shardFor(B bean) throws RollbackException {
+        if (bean == null) {
+            throw new NullPointerException("bean");
+        }
+
+        return shardFor(shards.get(0).getImpl().getPrimaryKeyValues(bean));
+    }
+
+    private GenericDAO<B> shardFor(Object[] primaryKeyValues) throws RollbackException {
+        int index = shardFunction.getShard(primaryKeyValues, shards.size());
+        if (index < 0 || index >= shards.size()) {
+            rollbackAndThrow("Shard function returned " + index + " (there are "
+                    + shards.size() + " shards)");
+        }
+        return shards.get(index);
+    }
+
+    private static void checkNotInTransaction(String method) throws RollbackException {
+        if (Transaction.isActive()) {
+            rollbackAndThrow(method + " runs on every shard, so it cannot be part of a transaction");
+        }
+    }
+
+    private static void rollbackAndThrow(String message) throws RollbackException {
+        if (Transaction.isActive()) {
+            Transaction.rollback();
+        }
+        throw new RollbackException(message);
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright (c) 2012-2016 Jeffrey L. Eppinger.  All Rights Reserved.
+ *     You may use, modify and share this code for non-commercial purposes
+ *     as long a you comply with this license from Creative Commons:
+ *     Summary of license: http://creativecommons.org/licenses/by-nc-sa/3.0
+ *     Full Text of License: http://creativecommons.org/licenses/by-nc-sa/3.0/legalcode
+ *     Specifically, if you distribute your code for non-educational purposes,
+ *     you must include this copyright notice in your work.
+ *     If you wish to have broader rights, you must contact the copyright holder.
+ */
+package com.github.idelstak.genericdao;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Pattern;
+
+import com.github.idelstak.genericdao.impl.GenericDAOImpl;
+
+/**
+ * Hands out <code>GenericDAO</code>s for applications that keep each tenant
+ * (customer) in its own schema, with the same tables in every schema.
+ * <p>
+ * All tenants share one <code>ConnectionPool</code>: a connection is not tied
+ * to a schema, since the factory's DAOs qualify table names with the
+ * tenant's schema (<code>tenant.table</code>).  To keep one busy tenant from
+ * taking every connection, each tenant may be limited to a quota of
+ * connections at once.
+ * <p>
+ * The bean class is analyzed once per table, not once per tenant, and the
+ * DAOs for each tenant are cached.  The first time a tenant's DAO is
+ * requested, its table is created (if it's not there already) and
+ * validated, just as by the <code>GenericDAO</code> constructor.  After
+ * that, <code>getDAO()</code> is just a lookup, so it's fine to call it for
+ * every request:
+ *
+ * <pre>
+ * User u = factory.getDAO(User.class, "user", tenant).read(userName);
+ * </pre>
+ *
+ * As usual, a transaction can only involve one connection pool, which here
+ * means one tenant.
+ */
+public class TenantDAOFactory {
+
+    private static final Pattern SCHEMA_NAME = Pattern.compile("[A-Za-z0-9_$]+");
+
+    private final ConnectionPool sharedPool;
+    private final int tenantQuota;
+    private final ConcurrentHashMap<String, ConnectionPool> tenantPools = new ConcurrentHashMap<String, ConnectionPool>();
+    // By (bean class, table name)
+    private final ConcurrentHashMap<List<Object>, GenericDAOImpl<?>> templates = new ConcurrentHashMap<List<Object>, GenericDAOImpl<?>>();
+    // By (bean class, table name, tenant)
+    private final ConcurrentHashMap<List<Object>, GenericDAO<?>> daos = new ConcurrentHashMap<List<Object>, GenericDAO<?>>();
+    // By (bean class, table name, tenant).  Held while creating that DAO, so
+    // a table is not created twice, without making other tenants (or tables)
+    // wait on its DDL.  Removed once the DAO is in daos.
+    private final ConcurrentHashMap<List<Object>, ReentrantLock> createLocks = new ConcurrentHashMap<List<Object>, ReentrantLock>();
+
+    /**
+     * Creates a factory whose DAOs share a connection pool.
+     *
+     * @param sharedPool the connection pool for all tenants
+     * @param tenantQuota the maximum number of connections a tenant uses at
+     *            once, or zero for no limit (other than the pool's)
+     */
+    public TenantDAOFactory(ConnectionPool sharedPool, int tenantQuota) {
+        if (sharedPool == null) {
+            throw new NullPointerException("sharedPool");
+        }
+
+        if (tenantQuota < 0) {
+            throw new IllegalArgumentException("tenantQuota is negative: " + tenantQuota);
+        }
+
+        this.sharedPool = sharedPool;
+        this.tenantQuota = tenantQuota;
+    }
+
+    /**
+     * Returns the connection pool a tenant's DAOs use.  It hands out
+     * connections from the shared pool, within the tenant's quota.  Use it
+     * (e.g., its <code>getTransactionConnection()</code>) to run your own SQL
+     * for the tenant.
+     *
+     * @param tenant the tenant's schema name
+     * @return the tenant's connection pool
+     */
+    public ConnectionPool getConnectionPool(String tenant) {
+        ConnectionPool cp = tenantPools.get(tenant);
+        if (cp != null) {
+            return cp;
+        }
+
+        checkSchemaName(tenant);
+        cp = new ConnectionPool(sharedPool, tenantQuota);
+        ConnectionPool existing = tenantPools.putIfAbsent(tenant, cp);
+        return (existing == null) ? cp : existing;
+    }
+
+    /**
+     * Returns the DAO for a table in a tenant's schema.
+     *
+     * @param <B> the bean type
+     * @param beanClass the class description of the bean.
+     * @param tableName the name of the table (without a schema name).
+     * @param tenant the tenant's schema name.
+     * @return the DAO
+     * @throws DAOException if there are any problems, including problems
+     *             accessing the database, problems with the bean class, etc.
+     */
+    public <B> GenericDAO<B> getDAO(Class<B> beanClass, String tableName, String tenant) throws DAOException {
+        List<Object> key = Arrays.<Object>asList(beanClass, tableName, tenant);
+        @SuppressWarnings("unchecked")
+        GenericDAO<B> dao = (GenericDAO<B>) daos.get(key);
+        if (dao != null) {
+            return dao;
+        }
+
+        if (tableName.contains(".")) {
+            throw new IllegalArgumentException("tableName includes a schema name: " + tableName);
+        }
+        checkSchemaName(tenant);
+
+        ReentrantLock lock = createLocks.get(key);
+        if (lock == null) {
+            ReentrantLock newLock = new ReentrantLock();
+            lock = createLocks.putIfAbsent(key, newLock);
+            if (lock == null) {
+                lock = newLock;
+            }
+        }
+
+        lock.lock();
+        try {
+            @SuppressWarnings("unchecked")
+            GenericDAO<B> existing = (GenericDAO<B>) daos.get(key);
+            if (existing != null) {
+                return existing;
+            }
+
+            GenericDAOImpl<B> template = getTemplate(beanClass, tableName);
+            dao = new GenericDAO<B>(template.forTable(tenant + "." + tableName, getConnectionPool(tenant)));
+            daos.put(key, dao);
+            // Later callers find the DAO without it.  (Not removed on failure,
+            // so threads still waiting on it can't race a newcomer's retry.)
+            createLocks.remove(key, lock);
+            return dao;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the shared connection pool.
+     *
+     * @return the connection pool for all tenants
+     */
+    public ConnectionPool getSharedPool() {
+        return sharedPool;
+    }
+
+    /**
+     * Gets the maximum number of connections a tenant uses at once.
+     *
+     * @return the tenant quota, or zero if there is no limit
+     */
+    public int getTenantQuota() {
+        return tenantQuota;
+    }
+
+    /**
+     * Returns the bean analysis for a table.  Two tenants may analyze it at
+     * once; the first to finish wins.
+     */
+    private <B> GenericDAOImpl<B> getTemplate(Class<B> beanClass, String tableName) throws DAOException {
+        List<Object> key = Arrays.<Object>asList(beanClass, tableName);
+        @SuppressWarnings("unchecked")
+        GenericDAOImpl<B> template = (GenericDAOImpl<B>) templates.get(key);
+        if (template == null) {
+            template = GenericDAOImpl.getInstance(beanClass, tableName, sharedPool);
+            @SuppressWarnings("unchecked")
+            GenericDAOImpl<B> existing = (GenericDAOImpl<B>) templates.putIfAbsent(key, template);
+            if (existing != null) {
+                template = existing;
+            }
+        }
+        return template;
+    }
+
+    private static void checkSchemaName(String tenant) {
+        if (tenant == null) {
+            throw new NullPointerException("tenant");
+        }
+
+        // It goes into SQL as is
+        if (!SCHEMA_NAME.matcher(tenant).matches()) {
+            throw new IllegalArgumentException("Not a valid schema name: " + tenant);
+        }
+    }
+}
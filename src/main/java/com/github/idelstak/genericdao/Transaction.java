@@ -14,6 +14,7 @@ import java.io.OutputStream;
 
 import com.github.idelstak.genericdao.impl.MyPrintWriter;
 import com.github.idelstak.genericdao.impl.TranImpl;
+import com.github.idelstak.genericdao.impl.TransactionRunner;
 
 /**
  * This class is used to begin and end transactions.
@@ -40,6 +41,7 @@ import com.github.idelstak.genericdao.impl.TranImpl;
  * transaction This is typically handled using : <blockquote>
  * 
  * <pre>
+ *     int level = Transaction.getNestingLevel();
  *     try {
  *         Transaction.begin();
  *         // Application logic, including CRUD calls
@@ -47,15 +49,52 @@ import com.github.idelstak.genericdao.impl.TranImpl;
  *     } catch (...) {
  *         ...
  *     } finally {
- *         if (Transaction.isActive()) Transaction.rollback();
+ *         if (Transaction.getNestingLevel() &gt; level) Transaction.rollback();
  *     }
  * </pre>
  * 
  * </blockquote>
  * <p>
- * Transactions cannot be nested. In other words, calling
- * <tt>Transaction.begin()</tt> when a transaction is already active in a thread
- * will throw <tt>RollbackException</tt>.
+ * Transactions can be nested. Calling <tt>Transaction.begin()</tt> when a
+ * transaction is already active in a thread begins a nested transaction, which
+ * marks a savepoint in the enclosing one. Committing the nested transaction
+ * makes its work part of the enclosing transaction (which must still be
+ * committed); rolling it back undoes its work only, and the enclosing
+ * transaction carries on. A <tt>RollbackException</tt> thrown in a nested
+ * transaction rolls back just that one (or, if rolling back to the savepoint
+ * fails, the whole transaction). So a piece of work can be retried without
+ * giving up the locks held by the enclosing transaction. That is why the
+ * example above compares nesting levels: after a <tt>RollbackException</tt>
+ * in a nested transaction the enclosing one is still active, so
+ * <tt>if (Transaction.isActive()) Transaction.rollback()</tt> in a
+ * <tt>finally</tt> clause would roll back the enclosing transaction, too.
+ * <p>
+ * A transaction that only reads should be begun with
+ * <tt>Transaction.beginReadOnly()</tt>. Its connection is read-only, its
+ * <tt>read()</tt> and <tt>match()</tt> calls lock no rows (so it does not
+ * hold up transactions that write them), and with a
+ * <tt>ReplicatedConnectionPool</tt> it runs on a replica. Calls that write
+ * throw <tt>RollbackException</tt>. Transactions nested in a read-only
+ * transaction are read-only, too.
+ * <p>
+ * <tt>Transaction.execute()</tt> does all of this for you, and also runs the
+ * work again if the database rolls the transaction back because of a
+ * deadlock or serialization failure: <blockquote>
+ * 
+ * <pre>
+ *     Item item = Transaction.execute(() -&gt; {
+ *         Item i = itemDAO.read(id);
+ *         i.setQuantity(i.getQuantity() - 1);
+ *         itemDAO.update(i);
+ *         return i;
+ *     });
+ * </pre>
+ * 
+ * </blockquote>
+ * <p>
+ * Work handed to other threads (e.g., to an executor) does not run in this
+ * thread's transaction unless it is run through the transaction's
+ * <tt>TransactionContext</tt> (see <tt>Transaction.getContext()</tt>).
  * <p>
  * To write a method that starts a new transaction, unless one is already
  * active, use recursion: <blockquote>
@@ -69,7 +108,7 @@ import com.github.idelstak.genericdao.impl.TranImpl;
  *             Transaction.commit();
  *             return;
  *         } finally {
- *             if (Transaction.isActive())
+ *             if (Transaction.getNestingLevel() &gt; 0)
  *                 Transaction.rollback();
  *         }
  *     }
@@ -83,6 +122,8 @@ import com.github.idelstak.genericdao.impl.TranImpl;
  */
 public class Transaction {
 
+    private static final TransactionOptions READ_ONLY = TransactionOptions.DEFAULT.withReadOnly(true);
+
     /**
      * Private constructor to prevent instantiation
      */
@@ -90,19 +131,72 @@ public class Transaction {
     }
 
     /**
-     * Begins a new transaction for this thread.
+     * Begins a new transaction for this thread, or a nested transaction if
+     * this thread is already in one.
      * 
      * @throws RollbackException
-     *             if there is some reason the transaction could not be started.
-     *             One reason is if you are already in a transaction.
+     *             if there is some reason the transaction could not be started,
+     *             e.g., the savepoint for a nested transaction could not be
+     *             set.
      */
     public static void begin() throws RollbackException {
         TranImpl.begin();
     }
 
+    /**
+     * Begins a new transaction for this thread with the given isolation
+     * level, time limit and read-only setting, or a nested transaction if
+     * this thread is already in one.  A nested transaction runs on the
+     * enclosing transaction's connection, so it cannot set its own
+     * isolation level (other than the enclosing transaction's) or time
+     * limit.
+     * <p>
+     * The isolation level and read-only setting are put on the
+     * transaction's connection when it starts.  The connection pool skips
+     * settings the connection already has, and puts back its defaults only
+     * when the connection is next used outside a transaction, so the
+     * settings usually cost no round trips to the database.
+     *
+     * @param options the transaction's settings
+     * @throws RollbackException
+     *             if there is some reason the transaction could not be started,
+     *             e.g., a nested transaction with its own time limit.
+     */
+    public static void begin(TransactionOptions options) throws RollbackException {
+        if (options == null) {
+            throw new NullPointerException("options");
+        }
+
+        TranImpl.begin(options);
+    }
+
+    /**
+     * Begins a new read-only transaction for this thread, or a nested
+     * read-only transaction if this thread is already in one.  In a read-only
+     * transaction, <tt>match()</tt> and <tt>read()</tt> lock no rows, and
+     * <tt>create()</tt>, <tt>update()</tt> and <tt>delete()</tt> throw
+     * <tt>RollbackException</tt>.
+     * <p>
+     * If the transaction is not nested, its connection is made read-only
+     * (<tt>Connection.setReadOnly(true)</tt>), which some databases use to
+     * skip work for writes, and it is borrowed as for
+     * <tt>ConnectionPool.getReadConnection()</tt>, so a
+     * <tt>ReplicatedConnectionPool</tt> runs it on a replica.  A nested
+     * read-only transaction uses the enclosing transaction's connection.
+     * 
+     * @throws RollbackException
+     *             if there is some reason the transaction could not be started,
+     *             e.g., the savepoint for a nested transaction could not be
+     *             set.
+     */
+    public static void beginReadOnly() throws RollbackException {
+        TranImpl.begin(READ_ONLY);
+    }
+
     /**
      * Commits the work performed by this thread's currently running
-     * transaction.
+     * transaction.  If it's a nested transaction, its work becomes part of
+     * the enclosing transaction.
      * 
      * @throws RollbackException
      *             if there is some reason the transaction could not be
@@ -113,7 +207,130 @@ public class Transaction {
     }
 
     /**
-     * Tests whether a transaction is currently running for this thread.
+     * Runs work in a new transaction, and commits it.  See
+     * <code>execute(TransactionOptions, TransactionalWork)</code>.
+     *
+     * @param <T> the type of the work's result
+     * @param work the work
+     * @return the work's result
+     * @throws RollbackException
+     *             if the work or the commit fails (after any retries).
+     */
+    public static <T> T execute(TransactionalWork<T> work) throws RollbackException {
+        return execute(TransactionOptions.DEFAULT, work);
+    }
+
+    /**
+     * Runs work in a new transaction with the given settings, and commits
+     * it.  If the work throws <code>RollbackException</code> (or any other
+     * exception), the transaction is rolled back.
+     * <p>
+     * If the transaction fails because the database chose it as the victim
+     * of a deadlock, it could not be serialized (SQLState 40001), or it
+     * timed out waiting for a lock, it is run again, after a short random
+     * wait that grows with each try, up to the options' number of retries.
+     * Retries across all threads are limited to about one per ten
+     * transactions, so that retries do not pile on when the database is
+     * overloaded.  See <code>getRetryCount()</code>.
+     * <p>
+     * A lock wait timeout does not always end the transaction in the
+     * database: MySQL, unless <code>innodb_rollback_on_timeout</code> is on,
+     * rolls back only the statement that timed out.  The transaction is
+     * rolled back before it is run again in any case, so each try starts
+     * afresh.
+     * <p>
+     * If this thread is already in a transaction, the work runs in a nested
+     * transaction and is not retried: after a deadlock the database will have
+     * rolled back the enclosing transaction too, and after a lock wait timeout
+     * the enclosing transaction still holds its locks, so the enclosing
+     * transaction is what must be retried.
+     *
+     * @param <T> the type of the work's result
+     * @param options the transaction's settings
+     * @param work the work
+     * @return the work's result
+     * @throws RollbackException
+     *             if the work or the commit fails (after any retries).
+     */
+    public static <T> T execute(TransactionOptions options, TransactionalWork<T> work) throws RollbackException {
+        if (options == null) {
+            throw new NullPointerException("options");
+        }
+        if (work == null) {
+            throw new NullPointerException("work");
+        }
+
+        return TransactionRunner.execute(options, work);
+    }
+
+    /**
+     * Writes to the database the writes this thread's transaction has put
+     * off (see <code>TransactionOptions.withWriteBehind()</code>), e.g.,
+     * before running your own SQL that should see them.
+     *
+     * @throws RollbackException
+     *             if a write fails, e.g., with
+     *             <code>DuplicateKeyException</code>.
+     */
+    public static void flush() throws RollbackException {
+        TranImpl.flush(null);
+    }
+
+    /**
+     * Returns a handle on this thread's transaction, for running work in it
+     * on other threads (see <code>TransactionContext</code>).
+     *
+     * @return the transaction's context
+     * @throws AssertionError
+     *             if not in a transaction.
+     */
+    public static TransactionContext getContext() {
+        TranImpl t = TranImpl.capture();
+        if (t == null) {
+            throw new AssertionError("Not in a transaction");
+        }
+
+        return new TransactionContext(t);
+    }
+
+    /**
+     * Returns how deeply this thread's transactions are nested.
+     * 
+     * @return 0 if this thread is not in a transaction, 1 if it's in a
+     *         transaction that is not nested, 2 if it's in a nested
+     *         transaction, and so on.
+     */
+    public static int getNestingLevel() {
+        return TranImpl.getNestingLevel();
+    }
+
+    /**
+     * Gets the number of times <code>execute()</code> has retried a
+     * transaction, since the program started.
+     *
+     * @return count of retries
+     */
+    public static long getRetryCount() {
+        return TransactionRunner.getRetryCount();
+    }
+
+    /**
+     * Gets the number of transactions <code>execute()</code> has given up on
+     * (out of retries, or over the retry budget) after a deadlock or
+     * serialization failure, since the program started.
+     *
+     * @return count of failed transactions that were not retried
+     */
+    public static long getRetriesExhaustedCount() {
+        return TransactionRunner.getRetriesExhaustedCount();
+    }
+
+    /**
+     * Tests whether a transaction is currently running for this thread.  To
+     * tell whether a transaction you began still needs rolling back, compare
+     * <code>getNestingLevel()</code> with its value before
+     * <code>begin()</code> instead (see the class comment): in a nested
+     * transaction, this is still true once yours has been rolled back.
      * 
      * @return true if this thread is in a transaction.
      */
@@ -121,9 +338,20 @@ public class Transaction {
         return TranImpl.isActive();
     }
 
+    /**
+     * Tests whether this thread's transaction is read-only, i.e., it or a
+     * transaction enclosing it was begun with <tt>beginReadOnly()</tt>.
+     * 
+     * @return true if this thread is in a read-only transaction.
+     */
+    public static boolean isReadOnly() {
+        return TranImpl.isReadOnly();
+    }
+
     /**
      * Causes the work performed by the current thread's currently running
-     * transaction to be undone.
+     * transaction to be undone.  If it's a nested transaction, only its work is
+     * undone, and the enclosing transaction carries on.
      * 
      * @throws AssertionError
      *             if not in a transaction.
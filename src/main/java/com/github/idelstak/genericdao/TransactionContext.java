@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2012-2016 Jeffrey L. Eppinger.  All Rights Reserved.
+ *     You may use, modify and share this code for non-commercial purposes
+ *     as long a you comply with this license from Creative Commons:
+ *     Summary of license: http://creativecommons.org/licenses/by-nc-sa/3.0
+ *     Full Text of License: http://creativecommons.org/licenses/by-nc-sa/3.0/legalcode
+ *     Specifically, if you distribute your code for non-educational purposes,
+ *     you must include this copyright notice in your work.
+ *     If you wish to have broader rights, you must contact the copyright holder.
+ */
+package com.github.idelstak.genericdao;
+
+import java.util.concurrent.Callable;
+
+import com.github.idelstak.genericdao.impl.TranImpl;
+
+/**
+ * A handle on a transaction, for running work in it on other threads.
+ * <p>
+ * Transactions are associated with threads, so work handed to an executor
+ * (or forked into subtasks) runs outside the transaction that handed it
+ * over, on connections of its own.  To run it in the transaction instead,
+ * get the transaction's context with <code>Transaction.getContext()</code>
+ * and pass the work to <code>call()</code> (or <code>bind()</code>) on the
+ * other thread: <blockquote>
+ *
+ * <pre>
+ *     TransactionContext context = Transaction.getContext();
+ *     Future&lt;Item&gt; item = executor.submit(context.bind(() -&gt; itemDAO.read(id)));
+ *     Future&lt;Order&gt; order = executor.submit(context.bind(() -&gt; orderDAO.read(orderId)));
+ *     ...
+ * </pre>
+ *
+ * </blockquote>
+ * <p>
+ * Each piece of work runs in a nested transaction, so a failure rolls back
+ * just its own work.  The threads sharing the transaction share its
+ * connection, which can only do one thing at a time, so they take turns:
+ * sharing gives subtasks the transaction's locks and snapshot (e.g., of a
+ * read-only transaction), not parallelism.  The thread that began the
+ * transaction should not use it while others do, and must not commit or
+ * roll it back until they are done (e.g., until it has waited for their
+ * <code>Future</code>s).
+ * <p>
+ * For reads that should run in parallel, give each subtask a read-only
+ * transaction of its own instead, e.g., with
+ * <code>Transaction.execute(TransactionOptions.DEFAULT.withReadOnly(true), work)</code>
+ * run on the subtask's thread.  Each then has its own connection and its own
+ * snapshot of the database.
+ */
+public final class TransactionContext {
+
+    private final TranImpl tran;
+
+    TransactionContext(TranImpl tran) {
+        this.tran = tran;
+    }
+
+    /**
+     * Returns work that, when called, runs in this transaction (see
+     * <code>call()</code>), e.g., to submit to an executor.
+     *
+     * @param <T> the type of the work's result
+     * @param work the work
+     * @return the work, bound to this transaction
+     */
+    public <T> Callable<T> bind(final TransactionalWork<T> work) {
+        if (work == null) {
+            throw new NullPointerException("work");
+        }
+
+        return new Callable<T>() {
+            public T call() throws RollbackException {
+                return TransactionContext.this.call(work);
+            }
+        };
+    }
+
+    /**
+     * Runs work on this thread in this transaction, as a nested transaction,
+     * waiting for any other thread working in it to finish first.  If the
+     * work throws <code>RollbackException</code> (or any other exception),
+     * its nested transaction is rolled back.
+     *
+     * @param <T> the type of the work's result
+     * @param work the work
+     * @return the work's result
+     * @throws RollbackException
+     *             if the work fails, if the transaction has already ended, or
+     *             if this thread is in another transaction.
+     */
+    public <T> T call(TransactionalWork<T> work) throws RollbackException {
+        if (work == null) {
+            throw new NullPointerException("work");
+        }
+
+        return TranImpl.share(tran, work);
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright (c) 2012-2016 Jeffrey L. Eppinger.  All Rights Reserved.
+ *     You may use, modify and share this code for non-commercial purposes
+ *     as long a you comply with this license from Creative Commons:
+ *     Summary of license: http://creativecommons.org/licenses/by-nc-sa/3.0
+ *     Full Text of License: http://creativecommons.org/licenses/by-nc-sa/3.0/legalcode
+ *     Specifically, if you distribute your code for non-educational purposes,
+ *     you must include this copyright notice in your work.
+ *     If you wish to have broader rights, you must contact the copyright holder.
+ */
+package com.github.idelstak.genericdao;
+
+import java.sql.Connection;
+
+/**
+ * Settings for a transaction begun with
+ * <code>Transaction.begin(TransactionOptions)</code>.
+ * <p>
+ * Options are immutable.  Start from <code>DEFAULT</code> and change the
+ * settings you need, e.g.:
+ *
+ * <pre>
+ * TransactionOptions options = TransactionOptions.DEFAULT
+ *         .withIsolation(Connection.TRANSACTION_SERIALIZABLE)
+ *         .withTimeout(5000);
+ * </pre>
+ */
+public final class TransactionOptions {
+
+    /**
+     * Default number of times <code>Transaction.execute()</code> retries a
+     * transaction.  Value is 3.
+     */
+    public static final int DEFAULT_MAX_RETRIES = 3;
+
+    /**
+     * The settings of a transaction begun with <code>Transaction.begin()</code>:
+     * the connection's isolation level, no time limit, and not read-only.
+     */
+    public static final TransactionOptions DEFAULT = new TransactionOptions(Connection.TRANSACTION_NONE, 0, false,
+            DEFAULT_MAX_RETRIES, false);
+
+    private final int isolation;
+    private final long timeout;
+    private final boolean readOnly;
+    private final int maxRetries;
+    private final boolean writeBehind;
+
+    private TransactionOptions(int isolation, long timeout, boolean readOnly, int maxRetries, boolean writeBehind) {
+        this.isolation = isolation;
+        this.timeout = timeout;
+        this.readOnly = readOnly;
+        this.maxRetries = maxRetries;
+        this.writeBehind = writeBehind;
+    }
+
+    /**
+     * Gets the isolation level.
+     *
+     * @return one of the <code>Connection.TRANSACTION_*</code> constants, or
+     *         <code>Connection.TRANSACTION_NONE</code> to use the
+     *         connection's isolation level (the database's default).
+     */
+    public int getIsolation() {
+        return isolation;
+    }
+
+    /**
+     * Gets the number of times <code>Transaction.execute()</code> retries the
+     * transaction.
+     *
+     * @return the maximum number of retries
+     */
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    /**
+     * Gets the time limit.
+     *
+     * @return time limit in milliseconds, or zero for no limit
+     */
+    public long getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Tells whether the transaction is read-only (see
+     * <code>Transaction.beginReadOnly()</code>).
+     *
+     * @return true if the transaction is read-only
+     */
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    /**
+     * Tells whether the transaction puts off its writes (see
+     * <code>withWriteBehind()</code>).
+     *
+     * @return true if the transaction puts off its writes
+     */
+    public boolean isWriteBehind() {
+        return writeBehind;
+    }
+
+    /**
+     * Returns these options with another isolation level.
+     *
+     * @param isolation <code>Connection.TRANSACTION_READ_UNCOMMITTED</code>,
+     *            <code>TRANSACTION_READ_COMMITTED</code>,
+     *            <code>TRANSACTION_REPEATABLE_READ</code> or
+     *            <code>TRANSACTION_SERIALIZABLE</code>, or
+     *            <code>TRANSACTION_NONE</code> to use the connection's
+     *            isolation level
+     * @return the new options
+     */
+    public TransactionOptions withIsolation(int isolation) {
+        switch (isolation) {
+            case Connection.TRANSACTION_NONE:
+            case Connection.TRANSACTION_READ_UNCOMMITTED:
+            case Connection.TRANSACTION_READ_COMMITTED:
+            case Connection.TRANSACTION_REPEATABLE_READ:
+            case Connection.TRANSACTION_SERIALIZABLE:
+                return new TransactionOptions(isolation, timeout, readOnly, maxRetries, writeBehind);
+            default:
+                throw new IllegalArgumentException("Not an isolation level: " + isolation);
+        }
+    }
+
+    /**
+     * Returns these options with another number of retries.  Only
+     * <code>Transaction.execute()</code> retries transactions.
+     *
+     * @param maxRetries the number of times a transaction that failed
+     *            because of a deadlock, serialization failure or lock wait
+     *            timeout is rolled back and run again, or zero for none
+     * @return the new options
+     */
+    public TransactionOptions withMaxRetries(int maxRetries) {
+        if (maxRetries < 0) {
+            throw new IllegalArgumentException("maxRetries is negative: " + maxRetries);
+        }
+
+        return new TransactionOptions(isolation, timeout, readOnly, maxRetries, writeBehind);
+    }
+
+    /**
+     * Returns these options with another time limit.  Each statement the
+     * transaction runs is given the time left (with
+     * <code>Statement.setQueryTimeout()</code>), and once the time is up its
+     * statements fail, rolling it back.
+     *
+     * @param millis time limit in milliseconds, counted from
+     *            <code>begin()</code>, or zero for no limit
+     * @return the new options
+     */
+    public TransactionOptions withTimeout(long millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("Timeout is negative: " + millis);
+        }
+
+        return new TransactionOptions(isolation, millis, readOnly, maxRetries, writeBehind);
+    }
+
+    /**
+     * Returns these options for a read-only transaction, or not.
+     *
+     * @param readOnly true for a read-only transaction
+     * @return the new options
+     */
+    public TransactionOptions withReadOnly(boolean readOnly) {
+        return new TransactionOptions(isolation, timeout, readOnly, maxRetries, writeBehind);
+    }
+
+    /**
+     * Returns these options for a transaction that puts off its writes, or
+     * not.
+     * <p>
+     * A transaction that puts off its writes keeps the rows it creates (other
+     * than those whose primary key the database generates), updates and
+     * deletes, and writes them in JDBC batches when it next reads a table it
+     * has written (with <code>match()</code>, <code>read()</code> or
+     * <code>getCount()</code>), when it commits, or when
+     * <code>Transaction.flush()</code> is called.  So it reads its own
+     * writes, but thousands of writes take a few round trips to the
+     * database.
+     * <p>
+     * The writes run in the order they were made, to all the tables, except
+     * that each run of consecutive writes of one kind (creates, updates or
+     * deletes) to one table is a batch sorted by primary key.  So writes that
+     * depend on each other (a delete before an insert that reuses a unique
+     * value, a child row deleted before its parent) keep working, but writes
+     * that alternate between tables or kinds batch poorly.  Errors, such as <code>DuplicateKeyException</code>, are
+     * thrown then rather than by the call that made the write.  Your own SQL
+     * (run on <code>getTransactionConnection()</code>) does not see the writes
+     * until they are flushed.
+     *
+     * @param writeBehind true for a transaction that puts off its writes
+     * @return the new options
+     */
+    public TransactionOptions withWriteBehind(boolean writeBehind) {
+        return new TransactionOptions(isolation, timeout, readOnly, maxRetries, writeBehind);
+    }
+
+    @Override
+    public String toString() {
+        return "TransactionOptions(isolation=" + isolation + ", timeout=" + timeout + ", readOnly=" + readOnly
+                + ", maxRetries=" + maxRetries + ", writeBehind=" + writeBehind + ")";
+    }
+}
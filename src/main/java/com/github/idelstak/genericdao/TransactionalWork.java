@@ -0,0 +1,30 @@
+/*
+ * Copyright (c) 2012-2016 Jeffrey L. Eppinger.  All Rights Reserved.
+ *     You may use, modify and share this code for non-commercial purposes
+ *     as long a you comply with this license from Creative Commons:
+ *     Summary of license: http://creativecommons.org/licenses/by-nc-sa/3.0
+ *     Full Text of License: http://creativecommons.org/licenses/by-nc-sa/3.0/legalcode
+ *     Specifically, if you distribute your code for non-educational purposes,
+ *     you must include this copyright notice in your work.
+ *     If you wish to have broader rights, you must contact the copyright holder.
+ */
+package com.github.idelstak.genericdao;
+
+/**
+ * Work to run in a transaction with <code>Transaction.execute()</code>.
+ *
+ * @param <T> the type of the work's result
+ */
+public interface TransactionalWork<T> {
+    /**
+     * Does the work, e.g., with GenericDAO calls.  Do not begin, commit or
+     * roll back the transaction: <code>Transaction.execute()</code> does that.
+     * The work may be run more than once, so it should not have effects
+     * outside the database (or they should be harmless to repeat).
+     *
+     * @return the result, which <code>Transaction.execute()</code> returns
+     *         once the transaction is committed
+     * @throws RollbackException if the work cannot be completed
+     */
+    T execute() throws RollbackException;
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2012-2016 Jeffrey L. Eppinger.  All Rights Reserved.
+ *     You may use, modify and share this code for non-commercial purposes
+ *     as long a you comply with this license from Creative Commons:
+ *     Summary of license: http://creativecommons.org/licenses/by-nc-sa/3.0
+ *     Full Text of License: http://creativecommons.org/licenses/by-nc-sa/3.0/legalcode
+ *     Specifically, if you distribute your code for non-educational purposes,
+ *     you must include this copyright notice in your work.
+ *     If you wish to have broader rights, you must contact the copyright holder.
+ */
+package com.github.idelstak.genericdao.impl;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Works out how many connections a pool should hand out at once, from how
+ * long borrowers hold them.
+ * <p>
+ * Hold times are averaged over short windows and compared to a long-term
+ * baseline (the hold time when the database is not loaded).  While the
+ * short-term average stays near the baseline, the database is keeping up,
+ * so if borrowers are waiting the limit grows (by about its square root per
+ * window).  When the short-term average rises well above the baseline, the
+ * database is saturated: adding connections only adds queueing inside it,
+ * so the limit shrinks in proportion (at most by half per window).  This is
+ * the gradient approach used by TCP Vegas and Netflix's concurrency-limits.
+ */
+final class AdaptiveLimit {
+
+    private static final long WINDOW_NANOS = 100 * 1000 * 1000;
+    private static final int MIN_WINDOW_SAMPLES = 10;
+    // Hold times may rise this much over the baseline before we shed
+    private static final double TOLERANCE = 1.5;
+    private static final double MIN_GRADIENT = 0.5;
+    // How far each window moves the limit (1 would be all the way)
+    private static final double SMOOTHING = 0.2;
+    // The baseline drifts up toward recent hold times over this many windows,
+    // so it recovers when queries genuinely get slower (e.g., larger tables).
+    private static final double BASELINE_WINDOWS = 600;
+
+    private final int minLimit;
+    private final int maxLimit;
+
+    // The current window.  Whoever closes it (CAS on windowStart) updates the
+    // estimate, so only one thread at a time writes estimate and baseline.
+    private final AtomicLong windowStart = new AtomicLong(System.nanoTime());
+    private final LongAdder windowSum = new LongAdder();
+    private final LongAdder windowCount = new LongAdder();
+    private final AtomicInteger windowMaxInFlight = new AtomicInteger();
+
+    // Volatile: the next window may be closed by another thread, and
+    // borrowers read them without holding limitLock.
+    private volatile double estimate;
+    private volatile double baseline = 0;  // nanos
+
+    AdaptiveLimit(int minLimit, int maxLimit, int initialLimit) {
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.estimate = initialLimit;
+    }
+
+    /**
+     * Records how long a connection was held.
+     *
+     * @param holdNanos how long the connection was held
+     * @param inFlight connections handed out when it was returned, including
+     *            this one
+     * @param waiting threads waiting for a connection
+     * @param limit the limit currently applied
+     * @return the new limit, or -1 if it's not time to change it
+     */
+    int sample(long holdNanos, int inFlight, int waiting, int limit) {
+        windowSum.add(holdNanos);
+        windowCount.increment();
+        windowMaxInFlight.accumulateAndGet(inFlight + waiting, Math::max);
+
+        long start = windowStart.get();
+        long now = System.nanoTime();
+        if (now - start < WINDOW_NANOS || windowCount.sum() < MIN_WINDOW_SAMPLES
+                || !windowStart.compareAndSet(start, now)) {
+            return -1;
+        }
+
+        long count = windowCount.sumThenReset();
+        double holdTime = (double) windowSum.sumThenReset() / Math.max(1, count);
+        int demand = windowMaxInFlight.getAndSet(0);
+
+        if (baseline == 0 || holdTime < baseline) {
+            baseline = holdTime;
+        } else {
+            baseline += (holdTime - baseline) / BASELINE_WINDOWS;
+        }
+
+        double gradient = Math.max(MIN_GRADIENT, Math.min(1.0, TOLERANCE * baseline / holdTime));
+        double target = estimate * gradient;
+        if (demand >= limit) {
+            // Borrowers used (or wanted) every connection: room to grow
+            target += Math.sqrt(estimate);
+        } else {
+            target = Math.min(target, estimate);
+        }
+
+        estimate = estimate * (1 - SMOOTHING) + target * SMOOTHING;
+        estimate = Math.max(minLimit, Math.min(maxLimit, estimate));
+        return (int) Math.round(estimate);
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2012-2016 Jeffrey L. Eppinger.  All Rights Reserved.
+ *     You may use, modify and share this code for non-commercial purposes
+ *     as long a you comply with this license from Creative Commons:
+ *     Summary of license: http://creativecommons.org/licenses/by-nc-sa/3.0
+ *     Full Text of License: http://creativecommons.org/licenses/by-nc-sa/3.0/legalcode
+ *     Specifically, if you distribute your code for non-educational purposes,
+ *     you must include this copyright notice in your work.
+ *     If you wish to have broader rights, you must contact the copyright holder.
+ */
+package com.github.idelstak.genericdao.impl;
+
+import com.github.idelstak.genericdao.OverloadException;
+import com.github.idelstak.genericdao.RollbackException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Limits how many calls on one DAO run at once, separately for reads and
+ * writes, so that a busy table cannot take every connection in a pool
+ * shared with other tables.
+ * <p>
+ * A call that cannot start right away waits, in arrival order, for at most
+ * the admission timeout.  If the calls ahead of it would (on their average
+ * running time so far) keep it waiting longer than that, it is turned away
+ * at once rather than after waiting out the timeout.
+ */
+public class AdmissionControl {
+
+    /**
+     * Held by an admitted call until it finishes.
+     */
+    public interface Ticket {
+        void release();
+    }
+
+    private static final Ticket UNLIMITED = new Ticket() {
+        public void release() {
+        }
+    };
+
+    private final String tableName;
+    // Replaced, not resized, when a limit changes.  Calls already admitted
+    // give their permit back to the gate that admitted them.
+    private volatile Gate readGate = null;
+    private volatile Gate writeGate = null;
+    private volatile long timeout;  // millis
+    private final LongAdder rejected = new LongAdder();
+
+    public AdmissionControl(String tableName, long timeout) {
+        this.tableName = tableName;
+        this.timeout = timeout;
+    }
+
+    public Ticket admitRead() throws RollbackException {
+        return admit(readGate, "read");
+    }
+
+    public Ticket admitWrite() throws RollbackException {
+        return admit(writeGate, "write");
+    }
+
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    public int getReadLimit() {
+        Gate g = readGate;
+        return (g == null) ? 0 : g.limit;
+    }
+
+    public long getTimeout() {
+        return timeout;
+    }
+
+    public int getWriteLimit() {
+        Gate g = writeGate;
+        return (g == null) ? 0 : g.limit;
+    }
+
+    public void setReadLimit(int limit) {
+        readGate = (limit > 0) ? new Gate(limit) : null;
+    }
+
+    public void setTimeout(long millis) {
+        timeout = millis;
+    }
+
+    public void setWriteLimit(int limit) {
+        writeGate = (limit > 0) ? new Gate(limit) : null;
+    }
+
+    private Ticket admit(Gate gate, String kind) throws RollbackException {
+        if (gate == null) {
+            return UNLIMITED;
+        }
+
+        long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+        try {
+            // Not plain tryAcquire(), which would barge ahead of queued waiters
+            if (gate.permits.tryAcquire(0, TimeUnit.NANOSECONDS)) {
+                return gate.new Admitted();
+            }
+
+            // Each of the calls ahead of us (and the one we're waiting for)
+            // takes about meanNanos, and limit of them run at once
+            long expectedWait = (gate.permits.getQueueLength() + 1) * gate.meanNanos / gate.limit;
+            if (expectedWait <= timeoutNanos
+                    && gate.permits.tryAcquire(timeoutNanos, TimeUnit.NANOSECONDS)) {
+                return gate.new Admitted();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            TranImpl.rollbackAndThrow("Interrupted waiting to " + kind + " " + tableName, e);
+        }
+
+        rejected.increment();
+        TranImpl.rollbackAndThrow(new OverloadException("Too many concurrent " + kind + "s on " + tableName
+                + " (limit " + gate.limit + ", timeout " + timeout + "ms)"));
+        throw new AssertionError("rollbackAndThrow returned (can't happen)");
+    }
+
+    private static class Gate {
+
+        final int limit;
+        final Semaphore permits;
+        // Average running time of admitted calls, a moving average over
+        // roughly the last 16.  Updated without synchronization: a lost
+        // update only makes the estimate a little staler.
+        volatile long meanNanos = 0;
+
+        Gate(int limit) {
+            this.limit = limit;
+            this.permits = new Semaphore(limit, true);
+        }
+
+        class Admitted implements Ticket {
+
+            private final long admittedAt = System.nanoTime();
+            private boolean released = false;
+
+            public void release() {
+                if (released) {
+                    return;
+                }
+
+                released = true;
+                long elapsed = System.nanoTime() - admittedAt;
+                long mean = meanNanos;
+                meanNanos = (mean == 0) ? elapsed : mean + (elapsed - mean) / 16;
+                permits.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2012-2016 Jeffrey L. Eppinger.  All Rights Reserved.
+ *     You may use, modify and share this code for non-commercial purposes
+ *     as long a you comply with this license from Creative Commons:
+ *     Summary of license: http://creativecommons.org/licenses/by-nc-sa/3.0
+ *     Full Text of License: http://creativecommons.org/licenses/by-nc-sa/3.0/legalcode
+ *     Specifically, if you distribute your code for non-educational purposes,
+ *     you must include this copyright notice in your work.
+ *     If you wish to have broader rights, you must contact the copyright holder.
+ */
+package com.github.idelstak.genericdao.impl;
+
+import java.lang.reflect.Method;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+/**
+ * A <tt>PreparedStatement</tt> kept in a pooled connection's statement cache.
+ * <p>
+ * Closing the proxy only clears the parameters (and any batch) and marks the
+ * statement free for the next <tt>prepareStatement()</tt> of the same SQL
+ * (and the same <tt>autoGeneratedKeys</tt> flag, if given).
+ * The statement is really closed when it's evicted from the cache (or its
+ * connection is closed), or if the holder changed one of its settings (e.g.,
+ * <tt>setMaxRows()</tt>), which the next holder would otherwise inherit.
+ */
+class CachedStatement extends PooledStatement {
+
+    // The SQL, or the SQL and autoGeneratedKeys flag
+    final Object key;
+
+    // Only touched by the thread holding the owner connection
+    boolean inUse = false;
+    boolean evicted = false;
+    // Set when the holder changes a setting the next holder would inherit
+    private boolean isChanged = false;
+
+    CachedStatement(PooledConnection owner, Object key, PreparedStatement physical) {
+        super(owner, physical, PreparedStatement.class);
+        this.key = key;
+    }
+
+    /**
+     * Gives the statement back to the cache, or closes it if it has been
+     * evicted while in use or its settings were changed.
+     */
+    void free() throws SQLException {
+        if (!inUse) {
+            return;
+        }
+
+        inUse = false;
+        if (isChanged && !evicted) {
+            owner.uncache(this);
+        }
+        if (evicted) {
+            physical.close();
+        } else {
+            // A batch left by a failed write would run with the next one
+            ((PreparedStatement) physical).clearBatch();
+            ((PreparedStatement) physical).clearParameters();
+        }
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        switch (method.getName()) {
+            case "setMaxRows":
+            case "setLargeMaxRows":
+            case "setMaxFieldSize":
+            case "setFetchSize":
+            case "setFetchDirection":
+            case "setQueryTimeout":
+            case "setEscapeProcessing":
+            case "setCursorName":
+            case "setPoolable":
+            case "closeOnCompletion":
+                isChanged = true;
+                break;
+            default:
+                break;
+        }
+        return super.invoke(proxy, method, args);
+    }
+
+    @Override
+    void close() throws SQLException {
+        free();
+    }
+
+    @Override
+    boolean isClosed() {
+        return !inUse;
+    }
+}
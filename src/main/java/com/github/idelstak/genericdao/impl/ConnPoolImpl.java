@@ -11,64 +11,237 @@
 package com.github.idelstak.genericdao.impl;
 
 import java.io.PrintWriter;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.WeakReference;
 import java.sql.Connection;
+import java.sql.Driver;
 import java.sql.DriverManager;
 import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 public class ConnPoolImpl {
 
+    // Connections are retired up to this fraction of maxLifetime early, so
+    // connections opened together are not all closed together.
+    private static final double MAX_LIFETIME_JITTER = 0.025;
+    // The most connections the housekeeper opens per pass when refilling
+    // a pool up to its minimum size.
+    private static final int REFILL_BATCH_SIZE = 4;
+    // Where adaptive sizing starts (if maxSize allows)
+    private static final int INITIAL_ADAPTIVE_LIMIT = 10;
+
     private String jdbcDriverName;
     private String jdbcURL;
     private String user;
     private String password;
-    private PrintWriter debugWriter = null;
+    private volatile PrintWriter debugWriter = null;
 
-    // A helper class to keep track of connections in the pool and the last time they were used.
-    private static class MyConnTime {
+    // Resolved on first use, then new connections go straight to the driver
+    private volatile Driver driver = null;
+    private Properties connectionProperties;
 
-        Connection conn;
-        long lastUsed;  // time in millis
-    }
-    // The following variables are synchronized on connections.
-    private List<MyConnTime> connections = new ArrayList<MyConnTime>();
-    private Thread cleanerThread = null;
-    private long maxIdleTime;
-    private long lastGetConnectionTime;
+    // MySQL error codes that mean the server (rather than one connection or
+    // statement) has gone away: server shutdown, connection killed, and
+    // running with --read-only (i.e., we're talking to a demoted primary).
+    private static final int[] FATAL_ERROR_CODES = {1053, 1927, 1290};
+
+    // Thread.isVirtual(), on JVMs that have virtual threads.  A virtual thread
+    // typically runs one task and ends, so remembering the connection it last
+    // released would only cost a thread-local per thread and never be used.
+    private static final MethodHandle IS_VIRTUAL = findIsVirtual();
+
+    // Sizing.  A maxSize of zero means the pool is unbounded.
+    private final int minSize;
+    private final int maxSize;
+    private final long borrowTimeout;
+
+    // One permit per connection that may be handed out.  Fair, so waiting
+    // threads are served in arrival order.  Null when the pool is unbounded.
+    private final LimitSemaphore borrowPermits;
+    // The number of permits, i.e., maxSize unless sizing is adaptive.
+    // Changed under limitLock.
+    private volatile int concurrencyLimit;
+    private volatile AdaptiveLimit adaptiveLimit = null;
+    private final ReentrantLock limitLock = new ReentrantLock();
+
+    // Idle connections.  The most recently released is at the tail (that's
+    // the one we hand out next), the most idle is at the head (that's the
+    // one the housekeeper looks at first).  A connection stays in the deque when
+    // its last user takes it back through lastReleased, so entries can be
+    // stale: whoever polls one must still claim it with a CAS.
+    private final ConcurrentLinkedDeque<PooledConnection> idle = new ConcurrentLinkedDeque<PooledConnection>();
+    // The connection each (platform) thread released last.  A thread that
+    // borrows and releases repeatedly gets the same connection back without
+    // touching the deque.  Weak, so closed connections are not kept alive.
+    private final ThreadLocal<WeakReference<PooledConnection>> lastReleased = new ThreadLocal<WeakReference<PooledConnection>>();
+    private final AtomicInteger size = new AtomicInteger();  // open physical connections
+    // Every open connection, idle or not.  Only changes when connections
+    // are opened or closed, so the borrow path never touches it.
+    private final Set<PooledConnection> connections = ConcurrentHashMap.newKeySet();
+    // Incremented whenever the pool is purged
+    private final AtomicInteger generation = new AtomicInteger();
+    // Set while a background fill for this pool is queued or running
+    private final AtomicBoolean filling = new AtomicBoolean();
+    private volatile int minIdle = 0;
+    private volatile int statementCacheSize;
+    private volatile int validationTimeout;  // seconds
+    private volatile long validationIdleThreshold;  // millis
+    private volatile long leakDetectionThreshold = 0;  // millis, zero for off
+    private volatile int leakTraceSampleRate = 100;
+    private volatile boolean reclaimLeakedConnections = false;
+    final PoolMetrics metrics = new PoolMetrics();
+    private ObjectName mbeanName = null;
+    private volatile long maxIdleTime;
+    private volatile long maxLifetime;
 
     public ConnPoolImpl(String jdbcDriverName, String jdbcURL, String user, String password, long maxIdleTime) {
+        this(jdbcDriverName, jdbcURL, user, password, maxIdleTime, 0, 0, 0, 0, 0, 0, Long.MAX_VALUE);
+    }
+
+    public ConnPoolImpl(String jdbcDriverName, String jdbcURL, String user, String password, long maxIdleTime,
+            long maxLifetime, int minSize, int maxSize, long borrowTimeout, int statementCacheSize,
+            int validationTimeout, long validationIdleThreshold) {
         this.jdbcDriverName = jdbcDriverName;
         this.jdbcURL = jdbcURL;
         this.user = user;
         this.password = password;
+        this.connectionProperties = new Properties();
+        if (user != null) {
+            connectionProperties.setProperty("user", user);
+        }
+        if (password != null) {
+            connectionProperties.setProperty("password", password);
+        }
         this.maxIdleTime = maxIdleTime;
+        this.maxLifetime = maxLifetime;
+        this.statementCacheSize = statementCacheSize;
+        this.validationTimeout = validationTimeout;
+        this.validationIdleThreshold = validationIdleThreshold;
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        this.borrowTimeout = borrowTimeout;
+        this.borrowPermits = (maxSize > 0) ? new LimitSemaphore(maxSize) : null;
+        this.concurrencyLimit = maxSize;
+
+        PoolHousekeeper.register(this);
     }
 
     public Connection getConnection() throws SQLException {
-        // If there is already a connection in the pool, return it
-        synchronized (connections) {
-            lastGetConnectionTime = System.currentTimeMillis();
-            if (connections.size() > 0) {
-                MyConnTime myConn = connections.remove(connections.size() - 1);
-                return myConn.conn;
+        return getConnection(borrowTimeout);
+    }
+
+    /**
+     * Borrows a connection, waiting at most <tt>timeoutMillis</tt> (which may
+     * be zero, not to wait at all) if all are in use.
+     */
+    public Connection getConnection(long timeoutMillis) throws SQLException {
+        long start = System.nanoTime();
+        acquirePermit(timeoutMillis);
+
+        try {
+            // If there is already a connection in the pool, return it
+            long now = System.currentTimeMillis();
+            PooledConnection pc = borrowLastReleased();
+            if (pc != null && !validate(pc, now)) {
+                pc = null;
+            }
+            if (pc == null) {
+                do {
+                    pc = borrowShared();
+                } while (pc != null && !validate(pc, now));
+                if (minIdle > 0) {
+                    // Running low: open more before the next callers need them
+                    fillAsync(Math.max(minIdle, REFILL_BATCH_SIZE));
+                }
+                if (pc == null) {
+                    // Otherwise, make a new connection and return it
+                    pc = newConnection();
+                }
+            }
+
+            pc.borrowedAt = System.nanoTime();
+            if (leakDetectionThreshold > 0) {
+                pc.leakReported = false;
+                pc.borrowTrace = (ThreadLocalRandom.current().nextInt(leakTraceSampleRate) == 0)
+                        ? new Throwable("Connection borrowed here") : null;
             }
+            metrics.borrowWait.recordNanos(pc.borrowedAt - start);
+            metrics.borrows.increment();
+            metrics.active.increment();
+            return pc.proxy;
+        } catch (SQLException | RuntimeException e) {
+            releasePermit();
+            throw e;
+        }
+    }
+
+    /**
+     * Borrows a connection, counting it against a quota (e.g., a tenant's
+     * share of a pool shared by several tenants).  The quota is given back
+     * when the connection is, however that happens.
+     */
+    public Connection getConnection(Semaphore quota) throws SQLException {
+        return getConnection(quota, borrowTimeout);
+    }
+
+    public Connection getConnection(Semaphore quota, long timeoutMillis) throws SQLException {
+        if (quota == null) {
+            return getConnection(timeoutMillis);
         }
 
-        // Otherwise, make a new connection and return it
+        long start = System.nanoTime();
         try {
-            Class.forName(jdbcDriverName);
-        } catch (ClassNotFoundException e) {
-            throw new AssertionError("Could not load database driver: " + e.toString());
+            if (!quota.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                if (timeoutMillis > 0) {
+                    metrics.borrowTimeouts.increment();
+                }
+                throw new SQLTransientConnectionException("Timed out after " + timeoutMillis
+                        + "ms waiting for a connection (quota is used up)");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLTransientConnectionException("Interrupted waiting for a connection", e);
         }
 
-        if (user == null) {
-            return DriverManager.getConnection(jdbcURL);
+        // The pool gets what's left of the timeout.  (At least 1ms, so that
+        // running out still counts as a timeout, not a probe.)
+        long remaining = timeoutMillis;
+        if (timeoutMillis > 0) {
+            remaining = Math.max(1, timeoutMillis - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        }
+        try {
+            Connection c = getConnection(remaining);
+            PooledConnection.of(c).quota = quota;
+            return c;
+        } catch (SQLException | RuntimeException e) {
+            quota.release();
+            throw e;
         }
-        return DriverManager.getConnection(jdbcURL, user, password);
     }
 
-    public synchronized PrintWriter getDebugWriter() {
+    public PrintWriter getDebugWriter() {
         return debugWriter;
     }
 
@@ -76,10 +249,72 @@ public class ConnPoolImpl {
         return jdbcDriverName;
     }
 
+    public long getBorrowTimeout() {
+        return borrowTimeout;
+    }
+
     public long getMaxIdleTime() {
-        synchronized (connections) {
-            return maxIdleTime;
-        }
+        return maxIdleTime;
+    }
+
+    public long getLeakDetectionThreshold() {
+        return leakDetectionThreshold;
+    }
+
+    public int getLeakTraceSampleRate() {
+        return leakTraceSampleRate;
+    }
+
+    public boolean getReclaimLeakedConnections() {
+        return reclaimLeakedConnections;
+    }
+
+    public int getMinIdle() {
+        return minIdle;
+    }
+
+    public long getMaxLifetime() {
+        return maxLifetime;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public int getConcurrencyLimit() {
+        return concurrencyLimit;
+    }
+
+    public boolean isAdaptiveSizing() {
+        return adaptiveLimit != null;
+    }
+
+    public int getMinSize() {
+        return minSize;
+    }
+
+    public int getValidationTimeout() {
+        return validationTimeout;
+    }
+
+    public long getValidationIdleThreshold() {
+        return validationIdleThreshold;
+    }
+
+    public int getStatementCacheSize() {
+        return statementCacheSize;
+    }
+
+    public long getStatementCacheHits() {
+        return metrics.statementCacheHits.sum();
+    }
+
+    public long getStatementCacheMisses() {
+        return metrics.statementCacheMisses.sum();
+    }
+
+    public PoolSnapshot getStatistics() {
+        return new PoolSnapshot(this);
     }
 
     public String getURL() {
@@ -90,80 +325,660 @@ public class ConnPoolImpl {
         return user;
     }
 
+    /**
+     * Tells whether a connection was handed out by this pool.
+     */
+    public boolean owns(Connection c) {
+        PooledConnection pc = PooledConnection.of(c);
+        return pc != null && pc.pool == this;
+    }
+
+    /**
+     * Returns the number of connections currently handed out.
+     */
+    public int getActiveCount() {
+        return (int) metrics.active.sum();
+    }
+
     public void releaseConnection(Connection c) {
         if (TranImpl.isActive()) {
             throw new AssertionError("You cannot release connections in a transaction.  The transaction manager");
         }
 
-        MyConnTime myConn = new MyConnTime();
-        myConn.conn = c;
-        myConn.lastUsed = System.currentTimeMillis();
+        PooledConnection pc = PooledConnection.of(c);
+        if (pc == null || pc.pool != this) {
+            throw new IllegalArgumentException("Connection was not obtained from this connection pool: " + c);
+        }
+
+        if (!pc.state.compareAndSet(PooledConnection.IN_USE, PooledConnection.RETURNING)) {
+            return;  // already released, closed or reclaimed as a leak
+        }
+
+        long now = System.currentTimeMillis();
+        pc.lastUsed = now;
+        recordReturn(pc);
 
-        synchronized (connections) {
-            connections.add(myConn);
+        pc.restoreDefaults();
+        try {
+            pc.freeStatements();
+        } catch (SQLException e) {
+            // The connection is broken.  Don't hand it out again.
+            PrintWriter writer = getDebugWriter();
+            if (writer != null) {
+                e.printStackTrace(writer);
+            }
+            retire(pc, true);
+            releasePermit();
+            return;
+        }
 
-            if (cleanerThread == null) {
-                cleanerThread = new CleanerThread();
-                cleanerThread.start();
+        if (pc.broken || pc.generation != generation.get()) {
+            // It (or the database) has failed.  Retire it rather than pooling it.
+            retire(pc, true);
+        } else if ((maxSize > 0 && size.get() > maxSize) || isExpired(pc, now)) {
+            // Either a burst of concurrent borrowers opened more connections
+            // than we keep, or this one has reached its max lifetime.
+            retire(pc, false);
+        } else {
+            pc.state.set(PooledConnection.IDLE);
+            if (!isVirtualThread()) {
+                WeakReference<PooledConnection> ref = lastReleased.get();
+                if (ref == null || ref.get() != pc) {
+                    lastReleased.set(new WeakReference<PooledConnection>(pc));
+                }
             }
+            enqueue(pc);
+        }
+        releasePermit();
+    }
+
+    /**
+     * Registers an MBean for this pool with the platform MBean server.
+     */
+    public void registerMBean(String name) throws JMException {
+        ObjectName objectName = new ObjectName("com.github.idelstak.genericdao:type=ConnectionPool,name="
+                + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(new PoolMXBeanImpl(this), objectName);
+        mbeanName = objectName;
+    }
+
+    public void unregisterMBean() throws JMException {
+        ObjectName objectName = mbeanName;
+        if (objectName != null) {
+            mbeanName = null;
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.unregisterMBean(objectName);
         }
     }
 
-    public synchronized void setDebugOutput(PrintWriter writer) {
+    public void setDebugOutput(PrintWriter writer) {
         debugWriter = writer;
     }
 
     public void setMaxIdleTime(long millis) {
-        synchronized (connections) {
-            maxIdleTime = millis;
-        }
-    }
-
-    private class CleanerThread extends Thread {
-
-        public void run() {
-            while (true) {
-                long now = System.currentTimeMillis();
-                Connection connectionToClose;
-                long sleepTime = 0;
-
-                // We won't want to close a connection or sleep in the synchronized block
-                // We just want to figure out which we need to do
-                synchronized (connections) {
-                    if (connections.isEmpty()) {
-                        if (now - lastGetConnectionTime > maxIdleTime) {
-                            cleanerThread = null;
-                            return;
-                        }
-
-                        sleepTime = maxIdleTime;
-                        connectionToClose = null;
-                    } else {
-                        MyConnTime mostIdle = connections.get(0);
-                        if (now - mostIdle.lastUsed > maxIdleTime) {
-                            connections.remove(0);
-                            connectionToClose = mostIdle.conn;
-                        } else {
-                            sleepTime = maxIdleTime - now + mostIdle.lastUsed + 1;
-                            connectionToClose = null;
-                        }
-                    }
+        maxIdleTime = millis;
+    }
+
+    public void setMaxLifetime(long millis) {
+        maxLifetime = millis;
+    }
+
+    public void setLeakDetectionThreshold(long millis) {
+        leakDetectionThreshold = millis;
+    }
+
+    public void setLeakTraceSampleRate(int rate) {
+        leakTraceSampleRate = rate;
+    }
+
+    public void setReclaimLeakedConnections(boolean reclaim) {
+        reclaimLeakedConnections = reclaim;
+    }
+
+    public void setMinIdle(int count) {
+        minIdle = count;
+    }
+
+    public void setAdaptiveSizing(boolean adaptive) {
+        if (borrowPermits == null) {
+            throw new IllegalStateException("Adaptive sizing needs a bounded pool (maxSize > 0)");
+        }
+
+        limitLock.lock();
+        try {
+            if (adaptive && adaptiveLimit == null) {
+                int min = Math.max(1, minSize);
+                int initial = Math.max(min, Math.min(maxSize, INITIAL_ADAPTIVE_LIMIT));
+                adaptiveLimit = new AdaptiveLimit(min, maxSize, initial);
+                applyLimit(initial);
+            } else if (!adaptive && adaptiveLimit != null) {
+                adaptiveLimit = null;
+                applyLimit(maxSize);
+            }
+        } finally {
+            limitLock.unlock();
+        }
+    }
+
+    public void setStatementCacheSize(int size) {
+        statementCacheSize = size;
+    }
+
+    public void setValidationTimeout(int seconds) {
+        validationTimeout = seconds;
+    }
+
+    public void setValidationIdleThreshold(long millis) {
+        validationIdleThreshold = millis;
+    }
+
+    /**
+     * Opens connections, in parallel, until the pool holds minSize of them.
+     * Returns when they are all open.
+     */
+    public void warmUp() throws SQLException {
+        List<Future<PooledConnection>> futures = new ArrayList<Future<PooledConnection>>();
+        int missing = minSize - size.get();
+        for (int i = 0; i < missing; i++) {
+            futures.add(PoolHousekeeper.fill(new Callable<PooledConnection>() {
+                public PooledConnection call() throws SQLException {
+                    return addIdleConnection();
+                }
+            }));
+        }
+
+        SQLException failure = null;
+        for (Future<PooledConnection> f : futures) {
+            try {
+                f.get();
+            } catch (ExecutionException e) {
+                SQLException cause = (e.getCause() instanceof SQLException)
+                        ? (SQLException) e.getCause()
+                        : new SQLException(e.getCause());
+                if (failure == null) {
+                    failure = cause;
+                } else {
+                    failure.setNextException(cause);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted warming up connection pool", e);
+            }
+        }
+
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Called when the holder of a connection closes it rather than releasing
+     * it.  The physical connection is closed and its slot given back.
+     */
+    void discardConnection(PooledConnection pc) throws SQLException {
+        boolean wasBorrowed = pc.state.compareAndSet(PooledConnection.IN_USE, PooledConnection.REMOVED);
+        if (!wasBorrowed) {
+            if (!pc.state.compareAndSet(PooledConnection.IDLE, PooledConnection.REMOVED)) {
+                return;  // already closed
+            }
+            idle.remove(pc);
+        } else {
+            recordReturn(pc);
+        }
+
+        metrics.connectionsDiscarded.increment();
+        forget(pc);
+        try {
+            pc.physical.close();
+        } finally {
+            if (wasBorrowed) {
+                releasePermit();
+            }
+        }
+    }
+
+    int getSize() {
+        return size.get();
+    }
+
+    int getPendingThreads() {
+        return (borrowPermits == null) ? 0 : borrowPermits.getQueueLength();
+    }
+
+    int getGeneration() {
+        return generation.get();
+    }
+
+    // Looks up Thread.isVirtual(), or returns null if this JVM has no
+    // virtual threads
+    private static MethodHandle findIsVirtual() {
+        try {
+            return MethodHandles.publicLookup().findVirtual(Thread.class, "isVirtual",
+                    MethodType.methodType(boolean.class));
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    static boolean isVirtualThread() {
+        if (IS_VIRTUAL == null) {
+            return false;
+        }
+
+        try {
+            return (boolean) IS_VIRTUAL.invokeExact(Thread.currentThread());
+        } catch (Throwable t) {
+            return false;
+        }
+    }
+
+    /**
+     * Tests whether an exception means the connection it came from (and
+     * probably every other connection to the same database) is unusable.
+     */
+    static boolean isFatal(SQLException e) {
+        String sqlState = e.getSQLState();
+        if (sqlState != null && sqlState.startsWith("08")) {
+            return true;  // connection exception
+        }
+
+        for (int code : FATAL_ERROR_CODES) {
+            if (e.getErrorCode() == code) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Closes every idle connection and makes sure the ones in use are closed
+     * when they are released.  Called when a connection fails in a way that
+     * means the database went away (e.g. restart or failover), so that the
+     * connections opened before then fail at most one validation rather than
+     * one user request each.
+     */
+    void purge(Throwable cause) {
+        generation.incrementAndGet();
+
+        int count = 0;
+        for (Iterator<PooledConnection> iter = idle.iterator(); iter.hasNext();) {
+            PooledConnection pc = iter.next();
+            if (pc.state.compareAndSet(PooledConnection.IDLE, PooledConnection.REMOVED)) {
+                iter.remove();
+                pc.queued.set(false);
+                forget(pc);
+                PoolHousekeeper.closeLater(pc);
+                count++;
+            }
+        }
+        metrics.connectionsDiscarded.add(count);
+
+        PrintWriter debug = getDebugWriter();
+        if (debug != null) {
+            debug.println("purged " + count + " idle connections after: " + cause);
+        }
+    }
+
+    /**
+     * How long the housekeeper waits between passes over this pool.
+     */
+    long getHousekeepingDelay() {
+        long delay = maxIdleTime / 4;
+        if (maxLifetime > 0) {
+            delay = Math.min(delay, maxLifetime / 4);
+        }
+        return Math.max(250, Math.min(delay, 30 * 1000));
+    }
+
+    /**
+     * One pass of background maintenance, run on the housekeeper thread.
+     * Idle connections past maxIdleTime (beyond the minimum size) or past
+     * their max lifetime are closed (on a filler thread), then the pool is
+     * refilled towards its minimum size.
+     */
+    void housekeep() {
+        long now = System.currentTimeMillis();
+        List<PooledConnection> toClose = new ArrayList<PooledConnection>();
+
+        for (Iterator<PooledConnection> iter = idle.iterator(); iter.hasNext();) {
+            PooledConnection pc = iter.next();
+            if (pc.state.get() != PooledConnection.IDLE) {
+                continue;  // stale entry, a borrower will drop it
+            }
+
+            boolean tooIdle = now - pc.lastUsed > maxIdleTime && size.get() - toClose.size() > minSize;
+            if ((tooIdle || isExpired(pc, now))
+                    && pc.state.compareAndSet(PooledConnection.IDLE, PooledConnection.REMOVED)) {
+                iter.remove();
+                pc.queued.set(false);
+                toClose.add(pc);
+            }
+        }
+
+        metrics.connectionsEvicted.add(toClose.size());
+        for (PooledConnection pc : toClose) {
+            forget(pc);
+            PoolHousekeeper.closeLater(pc);
+        }
+
+        if (leakDetectionThreshold > 0) {
+            detectLeaks();
+        }
+
+        fillAsync(REFILL_BATCH_SIZE);
+    }
+
+    /**
+     * Reports connections that have been handed out for longer than the
+     * leak detection threshold (once per borrow), and if so configured,
+     * takes them back: the physical connection is closed and its slot
+     * given to the next borrower.  The holder gets an SQLException the
+     * next time it uses the connection.
+     */
+    private void detectLeaks() {
+        long now = System.nanoTime();
+        long thresholdNanos = TimeUnit.MILLISECONDS.toNanos(leakDetectionThreshold);
+        PrintWriter debug = getDebugWriter();
+
+        for (PooledConnection pc : connections) {
+            if (pc.state.get() != PooledConnection.IN_USE || pc.leakReported
+                    || now - pc.borrowedAt <= thresholdNanos) {
+                continue;
+            }
+
+            pc.leakReported = true;
+            metrics.leaksDetected.increment();
+            if (debug != null) {
+                debug.println("Possible connection leak: " + pc.proxy + " has been in use for "
+                        + TimeUnit.NANOSECONDS.toMillis(now - pc.borrowedAt) + "ms");
+                if (pc.borrowTrace != null) {
+                    pc.borrowTrace.printStackTrace(debug);
+                }
+            }
+
+            if (reclaimLeakedConnections
+                    && pc.state.compareAndSet(PooledConnection.IN_USE, PooledConnection.REMOVED)) {
+                recordReturn(pc);
+                metrics.leaksReclaimed.increment();
+                forget(pc);
+                PoolHousekeeper.closeLater(pc);
+                releasePermit();
+            }
+        }
+    }
+
+    private void acquirePermit(long timeoutMillis) throws SQLException {
+        if (borrowPermits == null) {
+            return;
+        }
+
+        try {
+            if (!borrowPermits.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                // Not waiting at all is a probe, not a timeout
+                if (timeoutMillis > 0) {
+                    metrics.borrowTimeouts.increment();
                 }
+                throw new SQLTransientConnectionException("Timed out after " + timeoutMillis
+                        + "ms waiting for a connection (all " + concurrencyLimit + " connections are in use)");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLTransientConnectionException("Interrupted waiting for a connection", e);
+        }
+    }
+
+    private PooledConnection addIdleConnection() throws SQLException {
+        PooledConnection pc = newConnection();
+        pc.state.set(PooledConnection.IDLE);
+        enqueue(pc);
+        return pc;
+    }
+
+    private PooledConnection borrowLastReleased() {
+        if (isVirtualThread()) {
+            return null;
+        }
+
+        WeakReference<PooledConnection> ref = lastReleased.get();
+        if (ref != null) {
+            PooledConnection pc = ref.get();
+            if (pc != null && pc.state.compareAndSet(PooledConnection.IDLE, PooledConnection.IN_USE)) {
+                return pc;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Steals the most recently released connection from the deque, skipping
+     * entries that their last user has already taken back.
+     */
+    private PooledConnection borrowShared() {
+        PooledConnection pc;
+        while ((pc = idle.pollLast()) != null) {
+            pc.queued.set(false);
+            if (pc.state.compareAndSet(PooledConnection.IDLE, PooledConnection.IN_USE)) {
+                return pc;
+            }
+        }
+        return null;
+    }
+
+    private int countIdle(int limit) {
+        int count = 0;
+        for (Iterator<PooledConnection> iter = idle.iterator(); iter.hasNext() && count < limit;) {
+            if (iter.next().state.get() == PooledConnection.IDLE) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * The number of connections the pool is short of: below minSize in
+     * total, or below minIdle ready to hand out.
+     */
+    private int countMissing() {
+        int missing = Math.max(minSize - size.get(), minIdle - countIdle(minIdle));
+        if (maxSize > 0) {
+            missing = Math.min(missing, maxSize - size.get());
+        }
+        return missing;
+    }
+
+    /**
+     * Has a filler thread open connections until the pool is no longer
+     * short, opening at most <tt>limit</tt> of them.  Does nothing if a fill
+     * for this pool is already under way.
+     */
+    private void fillAsync(final int limit) {
+        if (limit <= 0 || countMissing() <= 0 || !filling.compareAndSet(false, true)) {
+            return;
+        }
 
-                // After the loop, either connectionToClose or sleepTime will be set (or we thread will have exited.)
+        PoolHousekeeper.fill(new Callable<PooledConnection>() {
+            public PooledConnection call() {
                 try {
-                    if (connectionToClose != null) {
-                        connectionToClose.close();
-                    } else {
-                        Thread.sleep(sleepTime);
+                    for (int i = 0; i < limit && countMissing() > 0; i++) {
+                        addIdleConnection();
                     }
-                } catch (InterruptedException | SQLException e) {
-                    PrintWriter writer = getDebugWriter();
-                    if (writer != null) {
-                        e.printStackTrace(writer);
+                } catch (SQLException e) {
+                    PrintWriter debug = getDebugWriter();
+                    if (debug != null) {
+                        e.printStackTrace(debug);
+                    }
+                } finally {
+                    filling.set(false);
+                }
+                return null;
+            }
+        });
+    }
+
+    private void enqueue(PooledConnection pc) {
+        if (pc.queued.compareAndSet(false, true)) {
+            idle.offerLast(pc);
+        }
+    }
+
+    private void releasePermit() {
+        if (borrowPermits != null) {
+            borrowPermits.release();
+        }
+    }
+
+    private Driver getDriver() throws SQLException {
+        Driver d = driver;
+        if (d == null) {
+            try {
+                Class.forName(jdbcDriverName);
+            } catch (ClassNotFoundException e) {
+                throw new AssertionError("Could not load database driver: " + e.toString());
+            }
+            d = DriverManager.getDriver(jdbcURL);
+            driver = d;
+        }
+        return d;
+    }
+
+    private PooledConnection newConnection() throws SQLException {
+        long start = System.nanoTime();
+        Connection c = getDriver().connect(jdbcURL, connectionProperties);
+        if (c == null) {
+            throw new SQLException("Driver " + jdbcDriverName + " does not accept URL: " + jdbcURL);
+        }
+        PooledConnection pc;
+        try {
+            pc = new PooledConnection(this, c);
+        } catch (SQLException e) {
+            c.close();
+            throw e;
+        }
+        metrics.connectionCreation.recordNanos(System.nanoTime() - start);
+        metrics.connectionsCreated.increment();
+        size.incrementAndGet();
+        connections.add(pc);
+        return pc;
+    }
+
+    /**
+     * Checks a connection about to be handed out.  Connections used recently
+     * are assumed to be good.  Others get a round trip to the database.  If
+     * that fails the connection is retired, and since the database has
+     * probably restarted or failed over, the rest of the pool is purged.
+     */
+    private boolean validate(PooledConnection pc, long now) {
+        if (now - pc.lastUsed <= validationIdleThreshold && pc.generation == generation.get()) {
+            return true;
+        }
+
+        Exception failure = null;
+        if (pc.generation == generation.get()) {
+            try {
+                if (pc.physical.isValid(validationTimeout)) {
+                    return true;
+                }
+            } catch (SQLException e) {
+                failure = e;
+            }
+            purge(failure != null ? failure : new SQLException("Connection failed validation: " + pc.physical));
+        }
+
+        retire(pc, true);
+        return false;
+    }
+
+    private boolean isExpired(PooledConnection pc, long now) {
+        long lifetime = maxLifetime;
+        if (lifetime <= 0) {
+            return false;
+        }
+        return now - pc.createdAt > lifetime - (long) (lifetime * MAX_LIFETIME_JITTER * pc.jitter);
+    }
+
+    private void forget(PooledConnection pc) {
+        size.decrementAndGet();
+        connections.remove(pc);
+    }
+
+    private void recordReturn(PooledConnection pc) {
+        Semaphore quota = pc.quota;
+        if (quota != null) {
+            pc.quota = null;
+            quota.release();
+        }
+
+        long usage = System.nanoTime() - pc.borrowedAt;
+        int active = (int) metrics.active.sum();
+        metrics.active.decrement();
+        metrics.usage.recordNanos(usage);
+
+        AdaptiveLimit adaptive = adaptiveLimit;
+        if (adaptive != null) {
+            int limit = adaptive.sample(usage, active, getPendingThreads(), concurrencyLimit);
+            if (limit > 0 && limit != concurrencyLimit) {
+                limitLock.lock();
+                try {
+                    // Unless adaptive sizing was switched off meanwhile
+                    if (adaptiveLimit == adaptive) {
+                        applyLimit(limit);
                     }
+                } finally {
+                    limitLock.unlock();
                 }
             }
         }
     }
+
+    /**
+     * Changes the number of permits.  Called with limitLock held.
+     */
+    private void applyLimit(int limit) {
+        int delta = limit - concurrencyLimit;
+        if (delta > 0) {
+            borrowPermits.release(delta);
+        } else if (delta < 0) {
+            // Borrowers already holding permits keep them.  The permit count
+            // goes negative until they give enough back.
+            borrowPermits.reducePermits(-delta);
+        }
+        concurrencyLimit = limit;
+
+        PrintWriter debug = getDebugWriter();
+        if (debug != null && delta != 0) {
+            debug.println("Concurrency limit of " + jdbcURL + " is now " + limit);
+        }
+    }
+
+    /**
+     * Takes a borrowed connection out of the pool and has the housekeeper
+     * close it, so the releasing thread doesn't wait on the driver.
+     */
+    private void retire(PooledConnection pc, boolean failed) {
+        if (failed) {
+            metrics.connectionsDiscarded.increment();
+        } else {
+            metrics.connectionsEvicted.increment();
+        }
+        pc.state.set(PooledConnection.REMOVED);
+        forget(pc);
+        PoolHousekeeper.closeLater(pc);
+    }
+
+    /**
+     * A semaphore whose number of permits can be reduced from outside.
+     */
+    private static class LimitSemaphore extends Semaphore {
+
+        private static final long serialVersionUID = 1L;
+
+        LimitSemaphore(int permits) {
+            super(permits, true);
+        }
+
+        @Override
+        protected void reducePermits(int reduction) {
+            super.reducePermits(reduction);
+        }
+    }
 }
@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2012-2016 Jeffrey L. Eppinger.  All Rights Reserved.
+ *     You may use, modify and share this code for non-commercial purposes
+ *     as long a you comply with this license from Creative Commons:
+ *     Summary of license: http://creativecommons.org/licenses/by-nc-sa/3.0
+ *     Full Text of License: http://creativecommons.org/licenses/by-nc-sa/3.0/legalcode
+ *     Specifically, if you distribute your code for non-educational purposes,
+ *     you must include this copyright notice in your work.
+ *     If you wish to have broader rights, you must contact the copyright holder.
+ */
+package com.github.idelstak.genericdao.impl;
+
+import com.github.idelstak.genericdao.RollbackException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs the same work against several databases at once (e.g., a query on
+ * every shard).
+ */
+public final class FanOut {
+
+    private static final ExecutorService executor
+            = Executors.newCachedThreadPool(new PoolHousekeeper.DaemonThreadFactory("GenericDAO-FanOut"));
+
+    private FanOut() {
+    }
+
+    /**
+     * Runs the tasks in parallel (the first on the calling thread) and
+     * returns their results in the same order.  If any fails, the first
+     * failure is thrown once all of them have finished.
+     */
+    public static <T> List<T> invokeAll(List<? extends Callable<T>> tasks) throws RollbackException {
+        List<Future<T>> futures = new ArrayList<Future<T>>(tasks.size());
+        for (int i = 1; i < tasks.size(); i++) {
+            futures.add(executor.submit(tasks.get(i)));
+        }
+
+        List<T> results = new ArrayList<T>(tasks.size());
+        Exception failure = null;
+        try {
+            results.add(tasks.get(0).call());
+        } catch (Exception e) {
+            failure = e;
+        }
+
+        for (Future<T> f : futures) {
+            try {
+                results.add(f.get());
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = (e.getCause() instanceof Exception) ? (Exception) e.getCause() : e;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                for (Future<T> other : futures) {
+                    other.cancel(true);
+                }
+                throw new RollbackException("Interrupted", e);
+            }
+        }
+
+        if (failure instanceof RollbackException) {
+            throw (RollbackException) failure;
+        }
+        if (failure != null) {
+            throw new RollbackException(failure);
+        }
+        return results;
+    }
+}
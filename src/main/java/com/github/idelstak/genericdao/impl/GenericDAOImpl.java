@@ -13,6 +13,7 @@ package com.github.idelstak.genericdao.impl;
 import java.io.File;
 import java.io.PrintWriter;
 import java.security.MessageDigest;
+import java.sql.BatchUpdateException;
 import java.sql.Connection;
 import java.sql.DatabaseMetaData;
 import java.sql.PreparedStatement;
@@ -21,13 +22,22 @@ import java.sql.SQLException;
 import java.sql.Statement;
 import java.sql.Types;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReentrantLock;
 import com.github.idelstak.genericdao.ConnectionPool;
 import com.github.idelstak.genericdao.DAOException;
 import com.github.idelstak.genericdao.DuplicateKeyException;
+import com.github.idelstak.genericdao.LockMode;
 import com.github.idelstak.genericdao.MatchArg;
 import com.github.idelstak.genericdao.RollbackException;
 import com.github.idelstak.genericdao.Transaction;
@@ -51,6 +61,16 @@ public abstract class GenericDAOImpl<B> extends GenericViewDAOImpl<B> {
     private String nonPrimaryKeyColumnNamesEqualsQuestionsCommaSeparated;
     private String primaryKeyColumnNamesEqualsQuestionsAndSeparated;
     private String primaryKeyColumnNamesCommaSeparated;
+    // Serializes createTable() and deleteTable().  A lock rather than a
+    // monitor, so a virtual thread waiting on the database doesn't pin its
+    // carrier thread.
+    private final ReentrantLock ddlLock = new ReentrantLock();
+    // Replaced, not changed, by setGroupCommit().  Writes already in a group
+    // finish with the one they joined.
+    private volatile GroupCommit groupCommit = null;
+    // Most rows (or keys) createAll(), readAll(), updateAll() and
+    // deleteAll() send in one statement (or batch)
+    private volatile int batchSize = 1000;
 
     protected GenericDAOImpl(Class<B> beanClass, String tableName, ConnectionPool connectionPool) throws DAOException {
         super(beanClass, connectionPool);
@@ -61,7 +81,7 @@ public abstract class GenericDAOImpl<B> extends GenericViewDAOImpl<B> {
             throw new NullPointerException("tableName");
         }
 
-        this.tableName = tableName.toLowerCase();
+        setTableName(tableName);
 
         primaryKeyProperties = extractProperties(true);
         nonPrimaryKeyProperties = extractProperties(false);
@@ -72,6 +92,42 @@ public abstract class GenericDAOImpl<B> extends GenericViewDAOImpl<B> {
                     + beanClass.getName());
         }
 
+        columnNamesCommaSeparated = concatNameSepSuff(properties, ", ", "");
+        columnQuestionsCommaSeparated = concatTokenSep(properties, "?", ", ");
+        nonPrimaryKeyColumnNamesEqualsQuestionsCommaSeparated = concatNameSepSuff(nonPrimaryKeyProperties, "=?, ", "=?");
+        nonPrimaryKeyColumnQuestionsCommaSeparated = concatTokenSep(nonPrimaryKeyProperties, "?", ", ");
+        primaryKeyColumnNamesEqualsQuestionsAndSeparated = concatNameSepSuff(primaryKeyProperties, "=? AND ", "=?");
+        primaryKeyColumnNamesCommaSeparated = concatNameSepSuff(primaryKeyProperties, ", ", "");
+    }
+
+    /**
+     * Makes a copy of <tt>template</tt> for another table (e.g., the same table
+     * in another schema) and connection pool.  The bean analysis and the SQL
+     * built from it are shared, so this is much cheaper than constructing a
+     * new instance.
+     */
+    protected GenericDAOImpl(GenericDAOImpl<B> template, String tableName, ConnectionPool connectionPool) {
+        super(template, connectionPool);
+
+        if (tableName == null) {
+            throw new NullPointerException("tableName");
+        }
+
+        setTableName(tableName);
+
+        primaryKeyProperties = template.primaryKeyProperties;
+        nonPrimaryKeyProperties = template.nonPrimaryKeyProperties;
+        columnNamesCommaSeparated = template.columnNamesCommaSeparated;
+        columnQuestionsCommaSeparated = template.columnQuestionsCommaSeparated;
+        nonPrimaryKeyColumnNamesEqualsQuestionsCommaSeparated = template.nonPrimaryKeyColumnNamesEqualsQuestionsCommaSeparated;
+        nonPrimaryKeyColumnQuestionsCommaSeparated = template.nonPrimaryKeyColumnQuestionsCommaSeparated;
+        primaryKeyColumnNamesEqualsQuestionsAndSeparated = template.primaryKeyColumnNamesEqualsQuestionsAndSeparated;
+        primaryKeyColumnNamesCommaSeparated = template.primaryKeyColumnNamesCommaSeparated;
+    }
+
+    private void setTableName(String tableName) {
+        this.tableName = tableName.toLowerCase();
+
         if (this.tableName.contains(".")) {
             int dotPos = this.tableName.indexOf('.');
             schemaName = this.tableName.substring(0, dotPos);
@@ -80,15 +136,15 @@ public abstract class GenericDAOImpl<B> extends GenericViewDAOImpl<B> {
             schemaName = getDefaultSchemaName();
             tableNameWithoutSchema = this.tableName;
         }
-
-        columnNamesCommaSeparated = concatNameSepSuff(properties, ", ", "");
-        columnQuestionsCommaSeparated = concatTokenSep(properties, "?", ", ");
-        nonPrimaryKeyColumnNamesEqualsQuestionsCommaSeparated = concatNameSepSuff(nonPrimaryKeyProperties, "=?, ", "=?");
-        nonPrimaryKeyColumnQuestionsCommaSeparated = concatTokenSep(nonPrimaryKeyProperties, "?", ", ");
-        primaryKeyColumnNamesEqualsQuestionsAndSeparated = concatNameSepSuff(primaryKeyProperties, "=? AND ", "=?");
-        primaryKeyColumnNamesCommaSeparated = concatNameSepSuff(primaryKeyProperties, ", ", "");
     }
 
+    /**
+     * Returns a copy of this DAO for another table with the same columns
+     * (e.g., the same table in another schema), using another connection
+     * pool.  See the copy constructor.
+     */
+    public abstract GenericDAOImpl<B> forTable(String tableName, ConnectionPool connectionPool);
+
     /**
      * Creates this table in the database. This method uses introspection to determine the properties of <tt>B</tt> and creates a database table that
      * can store instances of <tt>B</tt>.
@@ -100,7 +156,16 @@ public abstract class GenericDAOImpl<B> extends GenericViewDAOImpl<B> {
      * missing getters, setters, or constructors for the primary key properties, this <tt>BeanTable</tt> cannot determine how to map a property to the
      * database table, there is an error connecting to the database.
      */
-    public synchronized void createTable() throws DAOException {
+    public void createTable() throws DAOException {
+        ddlLock.lock();
+        try {
+            executeCreateTable();
+        } finally {
+            ddlLock.unlock();
+        }
+    }
+
+    private void executeCreateTable() throws DAOException {
         StringBuilder b = new StringBuilder();
         b.append("create table ");
         b.append(tableName);
@@ -147,6 +212,7 @@ public abstract class GenericDAOImpl<B> extends GenericViewDAOImpl<B> {
             }
             stmt.executeUpdate(b.toString());
             stmt.close();
+            connectionPool.releaseConnection(con);
         } catch (SQLException e) {
             try {
                 if (con != null) {
@@ -168,7 +234,16 @@ public abstract class GenericDAOImpl<B> extends GenericViewDAOImpl<B> {
      *
      * @throws DAOException if there is an error connecting to the database.
      */
-    public synchronized void deleteTable() throws DAOException {
+    public void deleteTable() throws DAOException {
+        ddlLock.lock();
+        try {
+            executeDeleteTable();
+        } finally {
+            ddlLock.unlock();
+        }
+    }
+
+    private void executeDeleteTable() throws DAOException {
         PrintWriter debug = connectionPool.getDebugWriter();
         Connection con = null;
         try {
@@ -284,14 +359,17 @@ public abstract class GenericDAOImpl<B> extends GenericViewDAOImpl<B> {
     }
 
     public void create(B bean) throws RollbackException {
+        checkWritable("create");
+        if (deferWrite(WriteBuffer.CREATE, bean, null)) {
+            return;
+        }
+
         Connection con = null;
         try {
             con = myJoin();
             PrintWriter debug = getDebug();
 
-            if (primaryKeyProperties.length == 1
-                    && (primaryKeyProperties[0].getType() == int.class
-                    || primaryKeyProperties[0].getType() == long.class)) {
+            if (isAutoIncrement()) {
                 Object id = createAutoIncrement(con, bean, debug);
                 setBeanValue(bean, properties[0], id);
 
@@ -329,9 +407,367 @@ public abstract class GenericDAOImpl<B> extends GenericViewDAOImpl<B> {
         }
     }
 
+    /**
+     * Creates rows for all the beans, in one transaction (this thread's, if
+     * it's in one), sending up to <tt>getBatchSize()</tt> rows per round
+     * trip: as multi-row <tt>INSERT</tt>s or, if the database generates the
+     * primary key, as JDBC batches, setting the generated keys in the beans.
+     */
+    public void createAll(Collection<? extends B> beans) throws RollbackException {
+        checkWritable("createAll");
+        if (beans.isEmpty()) {
+            return;
+        }
+
+        if (!TranImpl.isActive()) {
+            // All or nothing, even when it takes several statements
+            try {
+                TranImpl.begin();
+                createAll(beans);
+                TranImpl.commit();
+                return;
+            } finally {
+                if (TranImpl.isActive()) {
+                    TranImpl.rollback();
+                }
+            }
+        }
+
+        if (TranImpl.isWriteBehind() && !isAutoIncrement()) {
+            for (B bean : beans) {
+                deferWrite(WriteBuffer.CREATE, bean, null);
+            }
+            return;
+        }
+
+        Connection con = null;
+        try {
+            con = myJoin();
+            PrintWriter debug = getDebug();
+            List<B> list = new ArrayList<B>(beans);
+            int chunk = batchSize;
+            if (!isAutoIncrement()) {
+                chunk = Math.max(1, Math.min(chunk, getMaxParameters() / properties.length));
+            }
+
+            for (int start = 0; start < list.size(); start += chunk) {
+                List<B> part = list.subList(start, Math.min(list.size(), start + chunk));
+                if (isAutoIncrement()) {
+                    Object[] ids = createAllAutoIncrement(con, part, debug);
+                    for (int i = 0; i < ids.length; i++) {
+                        setBeanValue(part.get(i), properties[0], ids[i]);
+                    }
+                } else {
+                    createRows(con, part, debug);
+                }
+            }
+
+            myRelease(con, debug);
+        } catch (SQLException e) {
+            if (e.getMessage() != null && e.getMessage().startsWith("Duplicate")) {
+                TranImpl.rollbackAndThrow(con, new DuplicateKeyException(e.getMessage()), getDebug());
+            }
+            TranImpl.rollbackAndThrow(con, e, getDebug());
+        } catch (Exception e) {
+            TranImpl.rollbackAndThrow(con, e, getDebug());
+        }
+    }
+
+    /**
+     * Inserts rows for the beans with one multi-row <tt>INSERT</tt>.
+     */
+    private void createRows(Connection con, List<B> beans, PrintWriter debug)
+            throws SQLException, RollbackException {
+        StringBuilder b = new StringBuilder();
+        b.append("INSERT INTO ");
+        b.append(tableName);
+        b.append(" (");
+        b.append(columnNamesCommaSeparated);
+        b.append(") values ");
+        for (int i = 0; i < beans.size(); i++) {
+            if (i > 0) {
+                b.append(", ");
+            }
+            b.append("(");
+            b.append(columnQuestionsCommaSeparated);
+            b.append(")");
+        }
+
+        if (debug != null) {
+            debug.println("createAll: INSERT INTO " + tableName + " (" + columnNamesCommaSeparated + ") values ("
+                    + columnQuestionsCommaSeparated + ") x " + beans.size() + " rows");
+        }
+        try (PreparedStatement pstmt = con.prepareStatement(b.toString())) {
+            int arg = 0;
+            for (B bean : beans) {
+                for (int i = 0; i < properties.length; i++) {
+                    Object value = getBeanValue(bean, properties[i]);
+                    checkMaxStringLength(properties[i], value);
+                    pstmt.setObject(++arg, value);
+                }
+            }
+            pstmt.executeUpdate();
+        }
+    }
+
+    /**
+     * Updates the rows for all the beans, in one transaction (this thread's,
+     * if it's in one), with JDBC batches of up to <tt>getBatchSize()</tt>
+     * rows, checking that each bean's row is there.  The rows are updated in
+     * primary key order, so that transactions updating the same rows lock
+     * them in the same order rather than deadlocking.
+     */
+    public void updateAll(Collection<? extends B> beans) throws RollbackException {
+        checkWritable("updateAll");
+        if (beans.isEmpty()) {
+            return;
+        }
+
+        if (!TranImpl.isActive()) {
+            try {
+                TranImpl.begin();
+                updateAll(beans);
+                TranImpl.commit();
+                return;
+            } finally {
+                if (TranImpl.isActive()) {
+                    TranImpl.rollback();
+                }
+            }
+        }
+
+        if (TranImpl.isWriteBehind()) {
+            for (B bean : beans) {
+                deferWrite(WriteBuffer.UPDATE, bean, null);
+            }
+            return;
+        }
+
+        Connection con = null;
+        try {
+            // Sorted by key; a bean's later values replace its earlier ones
+            TreeMap<List<Object>, Object[]> rows = new TreeMap<List<Object>, Object[]>(WriteBuffer.KEY_ORDER);
+            for (B bean : beans) {
+                if (bean == null) {
+                    throw new NullPointerException("bean");
+                }
+                Object[] values = new Object[properties.length];
+                for (int i = 0; i < properties.length; i++) {
+                    values[i] = getBeanValue(bean, properties[i]);
+                    checkMaxStringLength(properties[i], values[i]);
+                }
+                Object[] key = getPrimaryKeyValues(bean);
+                validatePrimaryKeyValues(key);
+                rows.put(Arrays.asList(key), values);
+            }
+
+            con = myJoin();
+            PrintWriter debug = getDebug();
+            List<Object[]> list = new ArrayList<Object[]>(rows.values());
+            for (int start = 0; start < list.size(); start += batchSize) {
+                batchUpdate(con, list.subList(start, Math.min(list.size(), start + batchSize)), debug);
+            }
+
+            myRelease(con, debug);
+        } catch (Exception e) {
+            TranImpl.rollbackAndThrow(con, e, getDebug());
+        }
+    }
+
+    /**
+     * Deletes the rows with the given primary keys, in one transaction (this
+     * thread's, if it's in one), with <tt>DELETE ... WHERE key IN (...)</tt>
+     * statements of up to <tt>getBatchSize()</tt> keys, checking that every
+     * row is there.  The keys are sorted, so that transactions deleting the
+     * same rows lock them in the same order rather than deadlocking.  A key
+     * given twice is deleted once.  For a key with <tt>String</tt>
+     * properties, missing rows are not reported (see <tt>deleteRows()</tt>).
+     */
+    public void deleteAll(Collection<Object[]> keys) throws RollbackException {
+        checkWritable("deleteAll");
+        if (keys.isEmpty()) {
+            return;
+        }
+
+        if (!TranImpl.isActive()) {
+            try {
+                TranImpl.begin();
+                deleteAll(keys);
+                TranImpl.commit();
+                return;
+            } finally {
+                if (TranImpl.isActive()) {
+                    TranImpl.rollback();
+                }
+            }
+        }
+
+        TreeSet<List<Object>> sorted = new TreeSet<List<Object>>(WriteBuffer.KEY_ORDER);
+        for (Object[] key : keys) {
+            validatePrimaryKeyValues(key); // throws RollbackException
+            sorted.add(Arrays.asList(key.clone()));
+        }
+
+        if (TranImpl.isWriteBehind()) {
+            if (!hasStringKey()) {
+                for (List<Object> key : sorted) {
+                    deferWrite(WriteBuffer.DELETE, null, key.toArray());
+                }
+                return;
+            }
+            // Buffered, keys the database treats as equal would each be
+            // deleted on their own, and all but the first would find no row
+            flushWrites();
+        }
+
+        Connection con = null;
+        try {
+            con = myJoin();
+            PrintWriter debug = getDebug();
+            List<List<Object>> list = new ArrayList<List<Object>>(sorted);
+            int chunk = Math.max(1, Math.min(batchSize, getMaxParameters() / primaryKeyProperties.length));
+            for (int start = 0; start < list.size(); start += chunk) {
+                deleteRows(con, list.subList(start, Math.min(list.size(), start + chunk)), debug);
+            }
+
+            myRelease(con, debug);
+        } catch (Exception e) {
+            TranImpl.rollbackAndThrow(con, e, getDebug());
+        }
+    }
+
+    /**
+     * Deletes the rows with the given (distinct) primary keys with one
+     * <tt>DELETE</tt>, checking that each is there.
+     * <p>
+     * Keys are distinct by <tt>equals()</tt>, but the database may treat
+     * <tt>String</tt>s that differ as equal (MySQL's default collations
+     * ignore case and trailing spaces), in which case two keys delete one
+     * row.  So with a <tt>String</tt> key, fewer rows than keys is not
+     * taken to mean a row is missing.
+     */
+    private void deleteRows(Connection con, List<List<Object>> keys, PrintWriter debug)
+            throws SQLException, RollbackException {
+        String sql = "DELETE FROM " + tableName + " WHERE " + getKeyInClause(keys.size());
+        if (debug != null) {
+            debug.println("deleteAll: DELETE FROM " + tableName + " WHERE " + getKeyColumns() + " IN (...) ("
+                    + keys.size() + " keys)");
+        }
+        int num;
+        try (PreparedStatement pstmt = con.prepareStatement(sql)) {
+            int arg = 0;
+            for (List<Object> key : keys) {
+                for (Object value : key) {
+                    pstmt.setObject(++arg, value);
+                }
+            }
+            num = pstmt.executeUpdate();
+        }
+
+        if (num < keys.size() && !hasStringKey()) {
+            throw new RollbackException("No rows for " + (keys.size() - num) + " of the " + keys.size()
+                    + " primary keys from \"" + keyString(keys.get(0).toArray()) + "\" to \""
+                    + keyString(keys.get(keys.size() - 1).toArray()) + "\".");
+        }
+        if (num > keys.size()) {
+            throw new RollbackException("AssertionError: There are " + num + " rows with the "
+                    + keys.size() + " primary keys.");
+        }
+    }
+
+    /**
+     * Returns "<tt>key IN (?, ?, ...)</tt>" for <tt>n</tt> keys, or, for a
+     * composite key, "<tt>(k1, k2) IN ((?, ?), ...)</tt>".
+     */
+    private String getKeyInClause(int n) {
+        String one = (primaryKeyProperties.length > 1) ? "(" + concatTokenSep(primaryKeyProperties, "?", ", ") + ")" : "?";
+        StringBuilder b = new StringBuilder();
+        b.append(getKeyColumns());
+        b.append(" IN (");
+        for (int i = 0; i < n; i++) {
+            if (i > 0) {
+                b.append(", ");
+            }
+            b.append(one);
+        }
+        b.append(")");
+        return b.toString();
+    }
+
+    /**
+     * Returns whether any of the primary key properties is a <tt>String</tt>,
+     * which the database may compare differently than <tt>equals()</tt>.
+     */
+    private boolean hasStringKey() {
+        for (Property prop : primaryKeyProperties) {
+            if (prop.getType() == String.class) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private String getKeyColumns() {
+        if (primaryKeyProperties.length > 1) {
+            return "(" + primaryKeyColumnNamesCommaSeparated + ")";
+        }
+        return primaryKeyColumnNamesCommaSeparated;
+    }
+
+    /**
+     * Sets the most rows (or keys) <tt>createAll()</tt>, <tt>readAll()</tt>,
+     * <tt>updateAll()</tt> and <tt>deleteAll()</tt> send in one statement
+     * (or JDBC batch).
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public String getTableName() {
+        return tableName;
+    }
+
+    /**
+     * Tells whether the database generates primary key values, i.e., whether
+     * the primary key is a single <tt>int</tt> or <tt>long</tt> property.
+     */
+    public boolean isAutoIncrement() {
+        return primaryKeyProperties.length == 1
+                && (primaryKeyProperties[0].getType() == int.class
+                || primaryKeyProperties[0].getType() == long.class);
+    }
+
+    /**
+     * Returns the values of a bean's primary key properties, in the order
+     * <tt>read()</tt> and <tt>delete()</tt> take them.
+     */
+    public Object[] getPrimaryKeyValues(B bean) throws RollbackException {
+        Object[] values = new Object[primaryKeyProperties.length];
+        for (int i = 0; i < primaryKeyProperties.length; i++) {
+            values[i] = getBeanValue(bean, primaryKeyProperties[i]);
+        }
+        return values;
+    }
+
+    /**
+     * Tells whether constraints (as passed to <tt>match()</tt>) include a max
+     * or min constraint.
+     */
+    public boolean containsMaxOrMin(MatchArg... constraints) throws RollbackException {
+        return MatchArgTree.buildTree(properties, MatchArg.and(constraints)).containsMaxOrMin();
+    }
+
     public void delete(Object... primaryKeyValues) throws RollbackException {
+        checkWritable("delete");
         validatePrimaryKeyValues(primaryKeyValues); // throws RollbackException
         // if problems
+        if (deferWrite(WriteBuffer.DELETE, null, primaryKeyValues)) {
+            return;
+        }
 
         Connection con = null;
         try {
@@ -379,20 +815,23 @@ public abstract class GenericDAOImpl<B> extends GenericViewDAOImpl<B> {
     }
 
     public int getBeanCount() throws RollbackException {
+        TranImpl.flush(this);
+
         Connection con = null;
         try {
-            con = myJoin();
+            con = myReadJoin();
             PrintWriter debug = getDebug();
 
-            Statement stmt = con.createStatement();
             String sql = "SELECT COUNT(*) FROM " + tableName;
             if (debug != null) {
                 debug.println("getBeanCount: " + sql);
             }
-            ResultSet rs = stmt.executeQuery(sql);
+            PreparedStatement pstmt = con.prepareStatement(sql);
+            ResultSet rs = pstmt.executeQuery();
             rs.next();
             int answer = rs.getInt(1);
-            stmt.close();
+            rs.close();
+            pstmt.close();
 
             myRelease(con, debug);
 
@@ -407,6 +846,19 @@ public abstract class GenericDAOImpl<B> extends GenericViewDAOImpl<B> {
     }
 
     public B[] match(MatchArg... constraints) throws RollbackException {
+        // Read-only transactions take no locks
+        return match(TranImpl.isReadOnly() ? LockMode.NONE : LockMode.EXCLUSIVE, constraints);
+    }
+
+    public B[] match(LockMode lockMode, MatchArg... constraints) throws RollbackException {
+        if (lockMode == null) {
+            throw new NullPointerException("lockMode");
+        }
+
+        if (lockMode != LockMode.NONE && TranImpl.isReadOnly()) {
+            TranImpl.rollbackAndThrow("Cannot lock rows (" + lockMode + ") in a read-only transaction");
+        }
+
         MatchArgTree sepMatchArgs = MatchArgTree.buildTree(properties,
                 MatchArg.and(constraints)); // throws RollbackException in case
         // of problems
@@ -416,16 +868,121 @@ public abstract class GenericDAOImpl<B> extends GenericViewDAOImpl<B> {
             // first fetch max and min values and then match the other
             // constraints
             Transaction.begin();
-            B[] answer = sqlMatch(sepMatchArgs); // throws RollbackException in
+            B[] answer = sqlMatch(sepMatchArgs, lockMode); // throws RollbackException in
             // case of problems
             Transaction.commit();
             return answer;
         }
 
-        return sqlMatch(sepMatchArgs); // throws RollbackException in case of
+        return sqlMatch(sepMatchArgs, lockMode); // throws RollbackException in case of
         // problems
     }
 
+    /**
+     * Returns the beans with the given primary keys, in the same order, with
+     * <tt>null</tt> for keys that have no row.  The keys are sorted (so rows
+     * are locked in order) and looked up with <tt>SELECT ... WHERE key IN
+     * (...)</tt> queries of up to <tt>getBatchSize()</tt> keys.  Rows are
+     * locked as <tt>read()</tt> locks them.  A <tt>String</tt> key that the
+     * database matches to a row with a different key (e.g., in another
+     * case) gets that row, as from <tt>read()</tt>, at the cost of one more
+     * query per batch of such keys.
+     */
+    public B[] readAll(Collection<Object[]> keys) throws RollbackException {
+        List<List<Object>> requested = new ArrayList<List<Object>>(keys.size());
+        for (Object[] key : keys) {
+            validatePrimaryKeyValues(key); // throws RollbackException
+            requested.add(Arrays.asList(key.clone()));
+        }
+
+        TreeSet<List<Object>> sorted = new TreeSet<List<Object>>(WriteBuffer.KEY_ORDER);
+        sorted.addAll(requested);
+        PrintWriter debug = getDebug();
+        if (debug != null) {
+            debug.println("readAll: " + requested.size() + " keys (" + sorted.size() + " distinct)");
+        }
+
+        // Read-only transactions take no locks
+        LockMode lockMode = TranImpl.isReadOnly() ? LockMode.NONE : LockMode.EXCLUSIVE;
+        HashMap<List<Object>, B> found = new HashMap<List<Object>, B>();
+        List<List<Object>> list = new ArrayList<List<Object>>(sorted);
+        int chunk = Math.max(1, Math.min(batchSize, getMaxParameters() / primaryKeyProperties.length));
+        for (int start = 0; start < list.size(); start += chunk) {
+            List<List<Object>> part = list.subList(start, Math.min(list.size(), start + chunk));
+            String sql = "SELECT * FROM " + tableName + " WHERE " + getKeyInClause(part.size());
+            if (TranImpl.isActive()) {
+                sql += getLockClause(lockMode);
+            }
+            Object[] args = new Object[part.size() * primaryKeyProperties.length];
+            int arg = 0;
+            for (List<Object> key : part) {
+                for (Object value : key) {
+                    args[arg++] = value;
+                }
+            }
+
+            // Keys the database takes as equal (see below) may land in
+            // different batches, so a row may come back again in a later
+            // one: keep the first bean.  Twice in one result is an error.
+            HashSet<List<Object>> inPart = new HashSet<List<Object>>();
+            for (B bean : executeQuery(sql, args)) {
+                List<Object> key = Arrays.asList(getPrimaryKeyValues(bean));
+                if (!inPart.add(key)) {
+                    TranImpl.rollbackAndThrow("AssertionError: 2 records with same primary key: "
+                            + keyString(key.toArray()));
+                }
+                if (!found.containsKey(key)) {
+                    found.put(key, bean);
+                }
+            }
+        }
+
+        // The database may take a String key that differs from a row's as
+        // equal to it (MySQL's default collations ignore case and trailing
+        // spaces), so the row comes back under another key.  Ask it which
+        // row, if any, each key that found none by equals() names, with one
+        // lookup per key (UNION ALL), tagged with the key's position.  The
+        // rows it can name came back above, so they are already locked.
+        List<List<Object>> unmatched = new ArrayList<List<Object>>();
+        if (!found.isEmpty() && hasStringKey()) {
+            for (List<Object> key : sorted) {
+                if (!found.containsKey(key)) {
+                    unmatched.add(key);
+                }
+            }
+        }
+        for (int start = 0; start < unmatched.size(); start += chunk) {
+            List<List<Object>> part = unmatched.subList(start, Math.min(unmatched.size(), start + chunk));
+            StringBuilder sql = new StringBuilder();
+            Object[] args = new Object[part.size() * primaryKeyProperties.length];
+            int arg = 0;
+            for (int i = 0; i < part.size(); i++) {
+                if (i > 0) {
+                    sql.append(" UNION ALL ");
+                }
+                sql.append("SELECT ").append(i).append(", ").append(tableName).append(".* FROM ").append(tableName)
+                        .append(" WHERE ").append(primaryKeyColumnNamesEqualsQuestionsAndSeparated);
+                for (Object value : part.get(i)) {
+                    args[arg++] = value;
+                }
+            }
+
+            for (Map.Entry<Integer, B> e : executeTaggedQuery(sql.toString(), args).entrySet()) {
+                // The bean read (and locked) above
+                B bean = found.get(Arrays.asList(getPrimaryKeyValues(e.getValue())));
+                if (bean != null) {
+                    found.put(part.get(e.getKey()), bean);
+                }
+            }
+        }
+
+        B[] beans = newArray(requested.size());
+        for (int i = 0; i < beans.length; i++) {
+            beans[i] = found.get(requested.get(i));
+        }
+        return beans;
+    }
+
     public B read(Object... primaryKeyValues) throws RollbackException {
         validatePrimaryKeyValues(primaryKeyValues); // throws RollbackException
         // in case of problems
@@ -473,6 +1030,11 @@ public abstract class GenericDAOImpl<B> extends GenericViewDAOImpl<B> {
     }
 
     public void update(B bean) throws RollbackException {
+        checkWritable("update");
+        if (deferWrite(WriteBuffer.UPDATE, bean, null)) {
+            return;
+        }
+
         Connection con = null;
         try {
             con = myJoin();
@@ -643,9 +1205,42 @@ public abstract class GenericDAOImpl<B> extends GenericViewDAOImpl<B> {
     protected abstract Object createAutoIncrement(Connection con, B b,
             PrintWriter debug) throws SQLException, RollbackException;
 
+    /**
+     * Inserts rows whose primary key the database generates, with as few
+     * round trips as the driver allows, and returns the generated keys, in
+     * order.
+     */
+    protected abstract Object[] createAllAutoIncrement(Connection con, List<? extends B> beans,
+            PrintWriter debug) throws SQLException, RollbackException;
+
+    /**
+     * Returns the most parameters (<tt>?</tt>s) the database takes in one
+     * statement.
+     */
+    protected abstract int getMaxParameters();
+
     protected abstract Object fetchMinMaxValue(Connection con,
-            MatchArgLeafNode arg, String tableName, PrintWriter debug)
-            throws SQLException;
+            MatchArgLeafNode arg, String tableName, LockMode lockMode,
+            PrintWriter debug) throws SQLException;
+
+    /**
+     * Returns the clause appended to a <tt>SELECT</tt> in a transaction to
+     * lock the rows it finds, with a leading space (or "" for no locks).
+     */
+    protected String getLockClause(LockMode lockMode) {
+        switch (lockMode) {
+            case SHARED:
+                return " FOR SHARE";
+            case EXCLUSIVE:
+                return " FOR UPDATE";
+            case EXCLUSIVE_NOWAIT:
+                return " FOR UPDATE NOWAIT";
+            case EXCLUSIVE_SKIP_LOCKED:
+                return " FOR UPDATE SKIP LOCKED";
+            default:
+                return "";
+        }
+    }
 
     protected abstract String getLikeOperator();
 
@@ -713,7 +1308,7 @@ public abstract class GenericDAOImpl<B> extends GenericViewDAOImpl<B> {
         return sb.toString();
     }
 
-    private String computeSql(MatchArgTree argTree) {
+    private String computeSql(MatchArgTree argTree, LockMode lockMode) {
         StringBuffer sql = new StringBuffer();
         sql.append("SELECT * FROM ");
         sql.append(tableName);
@@ -725,7 +1320,7 @@ public abstract class GenericDAOImpl<B> extends GenericViewDAOImpl<B> {
         }
 
         if (TranImpl.isActive()) {
-            sql.append(" FOR UPDATE");
+            sql.append(getLockClause(lockMode));
         }
 
         return sql.toString();
@@ -803,7 +1398,7 @@ public abstract class GenericDAOImpl<B> extends GenericViewDAOImpl<B> {
         return list.toArray(new Property[list.size()]);
     }
 
-    private void fixMaxMin(MatchArgTree argTree, PrintWriter debug)
+    private void fixMaxMin(MatchArgTree argTree, LockMode lockMode, PrintWriter debug)
             throws RollbackException {
         // Max and min matches must be run in a transaction
         if (!TranImpl.isActive()) {
@@ -820,7 +1415,7 @@ public abstract class GenericDAOImpl<B> extends GenericViewDAOImpl<B> {
 
                 try {
                     Object matchValue = fetchMinMaxValue(con, arg, tableName,
-                            debug);
+                            lockMode, debug);
 
                     if (matchValue == null) {
                         // If there is no match from some max or min op, we set
@@ -989,14 +1584,17 @@ public abstract class GenericDAOImpl<B> extends GenericViewDAOImpl<B> {
         throw new DAOException("Cannot map SQL type: " + sqlType);
     }
 
-    private B[] sqlMatch(MatchArgTree argTree) throws RollbackException {
+    private B[] sqlMatch(MatchArgTree argTree, LockMode lockMode) throws RollbackException {
+        // Read the transaction's own writes
+        TranImpl.flush(this);
+
         PrintWriter debug = getDebug();
         try {
             if (argTree.containsMaxOrMin()) {
-                fixMaxMin(argTree, debug);
+                fixMaxMin(argTree, lockMode, debug);
             }
 
-            String sql = computeSql(argTree);
+            String sql = computeSql(argTree, lockMode);
             fixDBValuesForPartialStringMatch(argTree);
             return executeQuery(sql, (Object[]) argTree.getValues());
         } catch (Exception e) {
@@ -1005,6 +1603,199 @@ public abstract class GenericDAOImpl<B> extends GenericViewDAOImpl<B> {
         }
     }
 
+    @Override
+    protected void flushWrites() throws RollbackException {
+        TranImpl.flush(this);
+    }
+
+    /**
+     * Puts off a write until the transaction reads the table or commits (see
+     * <tt>WriteBuffer</tt>), or, outside of a transaction, hands it to the
+     * group commit, if either is on.  The bean's values are copied now.
+     *
+     * @return false if the write was not deferred, so the caller should make
+     *         it now
+     */
+    private boolean deferWrite(int kind, B bean, Object[] primaryKeyValues) throws RollbackException {
+        GroupCommit gc = groupCommit;
+        boolean isBuffered = TranImpl.isWriteBehind();
+        if (!isBuffered && (gc == null || TranImpl.isActive())) {
+            return false;
+        }
+        if (kind == WriteBuffer.CREATE && isAutoIncrement()) {
+            // The caller needs the generated key now
+            return false;
+        }
+
+        try {
+            Object[] values = null;
+            if (kind != WriteBuffer.DELETE) {
+                if (bean == null) {
+                    throw new NullPointerException("bean");
+                }
+                values = new Object[properties.length];
+                for (int i = 0; i < properties.length; i++) {
+                    values[i] = getBeanValue(bean, properties[i]);
+                    checkMaxStringLength(properties[i], values[i]);
+                }
+                primaryKeyValues = getPrimaryKeyValues(bean);
+            }
+            List<Object> key = Arrays.asList(primaryKeyValues.clone());
+
+            if (isBuffered) {
+                // Join now, so the transaction is not left with two pools
+                connectionPool.getTransactionConnection();
+                TranImpl.getWriteBuffer(this).add(kind, key, values);
+            } else {
+                gc.write(kind, key, values);
+            }
+        } catch (Exception e) {
+            TranImpl.rollbackAndThrow(e);
+        }
+        return true;
+    }
+
+    /**
+     * Groups the writes made outside of a transaction, by all threads, into
+     * shared transactions (see <tt>GroupCommit</tt>).
+     *
+     * @param windowMillis how long the first write in a group waits for
+     *            others, or zero to turn group commit off
+     * @param maxWrites the most writes in a group
+     */
+    public void setGroupCommit(long windowMillis, int maxWrites) {
+        groupCommit = (windowMillis > 0) ? new GroupCommit(this, connectionPool, windowMillis, maxWrites) : null;
+    }
+
+    public long getGroupCommitWindow() {
+        GroupCommit gc = groupCommit;
+        return (gc == null) ? 0 : gc.getWindow();
+    }
+
+    public int getGroupCommitMaxWrites() {
+        GroupCommit gc = groupCommit;
+        return (gc == null) ? 0 : gc.getMaxWrites();
+    }
+
+    /**
+     * Inserts rows with one JDBC batch.  Each row holds the values of
+     * <tt>properties</tt>, in order.
+     */
+    void batchCreate(Connection con, List<Object[]> rows, PrintWriter debug)
+            throws SQLException, RollbackException {
+        String sql = "INSERT INTO " + tableName + " ("
+                + columnNamesCommaSeparated + ") values ("
+                + columnQuestionsCommaSeparated + ")";
+        if (debug != null) {
+            debug.println("batchCreate: " + sql + " (" + rows.size() + " rows)");
+        }
+        try (PreparedStatement pstmt = con.prepareStatement(sql)) {
+            for (Object[] row : rows) {
+                for (int i = 0; i < properties.length; i++) {
+                    pstmt.setObject(i + 1, row[i]);
+                }
+                pstmt.addBatch();
+            }
+            pstmt.executeBatch();
+        } catch (BatchUpdateException e) {
+            if (e.getMessage() != null && e.getMessage().startsWith("Duplicate")) {
+                throw new DuplicateKeyException(e.getMessage());
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Updates rows with one JDBC batch, checking that each updates one row.
+     * Each row holds the values of <tt>properties</tt>, in order.
+     */
+    void batchUpdate(Connection con, List<Object[]> rows, PrintWriter debug)
+            throws SQLException, RollbackException {
+        String sql = "UPDATE " + tableName + " SET "
+                + nonPrimaryKeyColumnNamesEqualsQuestionsCommaSeparated
+                + " WHERE "
+                + primaryKeyColumnNamesEqualsQuestionsAndSeparated;
+        if (debug != null) {
+            debug.println("batchUpdate: " + sql + " (" + rows.size() + " rows)");
+        }
+        int[] counts;
+        try (PreparedStatement pstmt = con.prepareStatement(sql)) {
+            for (Object[] row : rows) {
+                int arg = 0;
+                for (int i = 0; i < properties.length; i++) {
+                    if (!properties[i].isPrimaryKeyProperty()) {
+                        pstmt.setObject(++arg, row[i]);
+                    }
+                }
+                for (int i = 0; i < properties.length; i++) {
+                    if (properties[i].isPrimaryKeyProperty()) {
+                        pstmt.setObject(++arg, row[i]);
+                    }
+                }
+                pstmt.addBatch();
+            }
+            counts = pstmt.executeBatch();
+        }
+
+        for (int i = 0; i < counts.length; i++) {
+            // Some drivers don't report the count for each row
+            if (counts[i] != 1 && counts[i] != Statement.SUCCESS_NO_INFO) {
+                throw new RollbackException("AssertionError: Incorrect number of rows updated: " + counts[i]);
+            }
+        }
+    }
+
+    /**
+     * Deletes rows with one JDBC batch, checking that each is there.  Each
+     * row holds primary key values.
+     */
+    void batchDelete(Connection con, List<Object[]> keys, PrintWriter debug)
+            throws SQLException, RollbackException {
+        String sql = "DELETE FROM " + tableName + " WHERE "
+                + primaryKeyColumnNamesEqualsQuestionsAndSeparated;
+        if (debug != null) {
+            debug.println("batchDelete: " + sql + " (" + keys.size() + " rows)");
+        }
+        int[] counts;
+        try (PreparedStatement pstmt = con.prepareStatement(sql)) {
+            for (Object[] key : keys) {
+                for (int i = 0; i < key.length; i++) {
+                    pstmt.setObject(i + 1, key[i]);
+                }
+                pstmt.addBatch();
+            }
+            counts = pstmt.executeBatch();
+        }
+
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] == 0) {
+                throw new RollbackException("No row with primary key = \""
+                        + keyString(keys.get(i)) + "\".");
+            }
+            if (counts[i] != 1 && counts[i] != Statement.SUCCESS_NO_INFO) {
+                throw new RollbackException("AssertionError: There are " + counts[i]
+                        + " rows with primary key = \"" + keyString(keys.get(i)) + "\".");
+            }
+        }
+    }
+
+    private static String keyString(Object[] key) {
+        StringBuilder b = new StringBuilder();
+        for (int i = 0; i < key.length; i++) {
+            if (i > 0) {
+                b.append(",");
+            }
+            b.append(key[i]);
+        }
+        return b.toString();
+    }
+
+    private void checkWritable(String method) throws RollbackException {
+        if (TranImpl.isReadOnly()) {
+            TranImpl.rollbackAndThrow("Cannot " + method + " " + tableName + " in a read-only transaction");
+        }
+    }
+
     private void validatePrimaryKeyValues(Object[] keyValues)
             throws RollbackException {
         // Note this method validates properties and types of the values, but
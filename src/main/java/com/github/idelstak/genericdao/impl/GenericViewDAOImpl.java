@@ -21,7 +21,9 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public class GenericViewDAOImpl<B> {
 
@@ -50,48 +52,120 @@ public class GenericViewDAOImpl<B> {
         }
     }
 
-    public B[] executeQuery(String sql, Object... args) throws RollbackException {
+    /**
+     * Makes a copy of <tt>template</tt> that uses another connection pool,
+     * without analyzing the bean class again.
+     */
+    protected GenericViewDAOImpl(GenericViewDAOImpl<B> template, ConnectionPool connectionPool) {
+        if (connectionPool == null) {
+            throw new NullPointerException("connectionPool");
+        }
+
+        this.connectionPool = connectionPool;
+        this.beanClass = template.beanClass;
+        this.properties = template.properties;
+    }
+
+    public B[] executeQuery(final String sql, final Object... args) throws RollbackException {
+        final PrintWriter debug = getDebug();
+        List<B> beanList = runQuery(new Query<List<B>>() {
+            List<B> run(Connection c) throws RollbackException, SQLException {
+                return executeQuery(c, debug, sql, args, null);
+            }
+        });
+        return toArray(beanList, debug);
+    }
+
+    /**
+     * Like <tt>executeQuery()</tt>, but each row starts with an extra
+     * <tt>INT</tt> column, a tag (e.g., saying which branch of a
+     * <tt>UNION</tt> found it).  Returns the beans by tag.
+     */
+    protected Map<Integer, B> executeTaggedQuery(final String sql, final Object... args) throws RollbackException {
+        final PrintWriter debug = getDebug();
+        return runQuery(new Query<Map<Integer, B>>() {
+            Map<Integer, B> run(Connection c) throws RollbackException, SQLException {
+                Map<Integer, B> tagged = new HashMap<Integer, B>();
+                executeQuery(c, debug, sql, args, tagged);
+                return tagged;
+            }
+        });
+    }
+
+    /**
+     * Runs a query on the transaction's connection, or, outside of a
+     * transaction, on the one the pool picks (e.g., a replica's, hedging the
+     * read).
+     */
+    private <T> T runQuery(Query<T> query) throws RollbackException {
+        if (!TranImpl.isActive()) {
+            try {
+                return connectionPool.executeRead(query);
+            } catch (SQLException e) {
+                if (e.getCause() instanceof RollbackException) {
+                    throw (RollbackException) e.getCause();
+                }
+                TranImpl.rollbackAndThrow(e);
+                throw new AssertionError("rollbackAndThrow returned (can't happen)");
+            }
+        }
+
+        flushWrites();
+
         Connection con = null;
         try {
-            con = myJoin();
-            PrintWriter debug = getDebug();
+            con = myReadJoin();
+            T result = query.run(con);
+            myRelease(con, getDebug());
+            return result;
+        } catch (SQLException e) {
+            TranImpl.rollbackAndThrow(con, e, getDebug());
+            throw new AssertionError("rollbackAndThrow returned (can't happen)");
+        }
+    }
 
-            if (debug != null) {
-                debug.println("executeQuery: sql = " + sql);
+    /**
+     * Puts the beans by tag (first column) in <tt>tagged</tt>, if it's not
+     * <tt>null</tt>.
+     */
+    private List<B> executeQuery(Connection con, PrintWriter debug, String sql, Object[] args, Map<Integer, B> tagged)
+            throws RollbackException, SQLException {
+        if (debug != null) {
+            debug.println("executeQuery: sql = " + sql);
+        }
+        try (PreparedStatement pstmt = con.prepareStatement(sql)) {
+            for (int i = 0; i < args.length; i++) {
+                if (debug != null) {
+                    debug.println("   set arg #" + (i + 1) + " to " + args[i]);
+                }
+                pstmt.setObject(i + 1, args[i]);
             }
-            List<B> beanList;
-            try (PreparedStatement pstmt = con.prepareStatement(sql)) {
-                for (int i = 0; i < args.length; i++) {
-                    if (debug != null) {
-                        debug.println("   set arg #" + (i + 1) + " to " + args[i]);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                List<B> beanList = new ArrayList<>();
+                while (rs.next()) {
+                    B bean = newBean();
+                    for (Property prop : properties) {
+                        Object value = rs.getObject(prop.getColumnName());
+                        value = fixDate(value);
+                        setBeanValue(bean, prop, value);
                     }
-                    pstmt.setObject(i + 1, args[i]);
-                }
-                try (ResultSet rs = pstmt.executeQuery()) {
-                    beanList = new ArrayList<>();
-                    while (rs.next()) {
-                        B bean = newBean();
-                        for (Property prop : properties) {
-                            Object value = rs.getObject(prop.getColumnName());
-                            value = fixDate(value);
-                            setBeanValue(bean, prop, value);
-                        }
-                        beanList.add(bean);
+                    beanList.add(bean);
+                    if (tagged != null) {
+                        tagged.put(rs.getInt(1), bean);
                     }
                 }
+                return beanList;
             }
-            myRelease(con, debug);
+        }
+    }
 
-            B[] beanArray = newArray(beanList.size());
-            beanList.toArray(beanArray);
-            if (debug != null) {
-                debug.println("executeQuery: returning " + beanArray.length + " beans");
-            }
-            return beanArray;
-        } catch (SQLException e) {
-            TranImpl.rollbackAndThrow(con, e, getDebug());
-            throw new AssertionError("rollbackAndThrow returned (can't happen)");
+    private B[] toArray(List<B> beanList, PrintWriter debug) {
+        B[] beanArray = newArray(beanList.size());
+        beanList.toArray(beanArray);
+        if (debug != null) {
+            debug.println("executeQuery: returning " + beanArray.length + " beans");
         }
+        return beanArray;
     }
 
     public String[] getPropertyNames() {
@@ -111,6 +185,15 @@ public class GenericViewDAOImpl<B> {
         return connectionPool.getDebugWriter();
     }
 
+    /**
+     * Runs the transaction's put-off writes (see
+     * <tt>TransactionOptions.withWriteBehind()</tt>) before a query, so it
+     * sees them.  A view may read any table, so this runs all of them.
+     */
+    protected void flushWrites() throws RollbackException {
+        TranImpl.flush(null);
+    }
+
     protected Connection myJoin() throws RollbackException, SQLException {
         if (TranImpl.isActive()) {
             Connection c = connectionPool.getTransactionConnection();
@@ -129,6 +212,24 @@ public class GenericViewDAOImpl<B> {
         return c;
     }
 
+    /**
+     * Like <tt>myJoin()</tt>, but outside of a transaction the connection comes
+     * from <tt>getReadConnection()</tt>, which may be a replica's.  Only use
+     * for statements that don't write.
+     */
+    protected Connection myReadJoin() throws RollbackException, SQLException {
+        if (TranImpl.isActive()) {
+            return myJoin();
+        }
+
+        Connection c = connectionPool.getReadConnection();
+        PrintWriter debug = connectionPool.getDebugWriter();
+        if (debug != null) {
+            debug.println("getting read connection: " + c);
+        }
+        return c;
+    }
+
     protected void myRelease(Connection con, PrintWriter debug) throws RollbackException, SQLException {
         if (TranImpl.isActive()) {
             return;
@@ -190,6 +291,29 @@ public class GenericViewDAOImpl<B> {
         }
     }
 
+    /**
+     * A query for <tt>runQuery()</tt>.  Outside of a transaction it runs as the
+     * pool's <tt>ReadOperation</tt>, which may only throw
+     * <tt>SQLException</tt>, so a <tt>RollbackException</tt> is carried out
+     * in one.
+     */
+    private abstract class Query<T> implements ConnectionPool.ReadOperation<T> {
+
+        abstract T run(Connection c) throws RollbackException, SQLException;
+
+        public T execute(Connection c) throws SQLException {
+            PrintWriter debug = connectionPool.getDebugWriter();
+            if (debug != null) {
+                debug.println("getting read connection: " + c);
+            }
+            try {
+                return run(c);
+            } catch (RollbackException e) {
+                throw new SQLException(e.getMessage(), e);
+            }
+        }
+    }
+
     private Object fixDate(Object value) {
         if (value == null) {
             return null;
@@ -0,0 +1,271 @@
+/*
+ * Copyright (c) 2012-2016 Jeffrey L. Eppinger.  All Rights Reserved.
+ *     You may use, modify and share this code for non-commercial purposes
+ *     as long a you comply with this license from Creative Commons:
+ *     Summary of license: http://creativecommons.org/licenses/by-nc-sa/3.0
+ *     Full Text of License: http://creativecommons.org/licenses/by-nc-sa/3.0/legalcode
+ *     Specifically, if you distribute your code for non-educational purposes,
+ *     you must include this copyright notice in your work.
+ *     If you wish to have broader rights, you must contact the copyright holder.
+ */
+package com.github.idelstak.genericdao.impl;
+
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.github.idelstak.genericdao.ConnectionPool;
+import com.github.idelstak.genericdao.RollbackException;
+
+/**
+ * Commits writes made outside of a transaction, by many threads at once, in
+ * groups: one transaction (and so one log flush) per group rather than per
+ * write.
+ * <p>
+ * The first write to arrive leads a group.  It waits for the window to pass
+ * (or the group to fill), closes the group, and runs all its writes on one
+ * connection, as JDBC batches (see <tt>WriteBuffer</tt>), in one
+ * transaction.  The other writers just wait for the outcome.  If the group
+ * fails, its writes are run again one at a time, each in its own
+ * transaction, so that only the writes that fail on their own fail.
+ */
+public class GroupCommit {
+
+    private final GenericDAOImpl<?> dao;
+    private final ConnectionPool connectionPool;
+    private final long windowNanos;
+    private final int maxWrites;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition closed = lock.newCondition();
+    // The group taking writes, if any.  Guarded by lock.
+    private List<Write> open = null;
+
+    GroupCommit(GenericDAOImpl<?> dao, ConnectionPool connectionPool, long windowMillis, int maxWrites) {
+        this.dao = dao;
+        this.connectionPool = connectionPool;
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+        this.maxWrites = maxWrites;
+    }
+
+    long getWindow() {
+        return TimeUnit.NANOSECONDS.toMillis(windowNanos);
+    }
+
+    int getMaxWrites() {
+        return maxWrites;
+    }
+
+    /**
+     * Makes a write, returning once the group it joins has been committed.
+     *
+     * @param key the row's primary key values
+     * @param values for <tt>CREATE</tt> and <tt>UPDATE</tt>, the values of
+     *            all the DAO's properties, in order
+     */
+    void write(int kind, List<Object> key, Object[] values) throws RollbackException {
+        Write w = new Write(kind, key, values);
+        List<Write> group;
+        boolean isLeader;
+        lock.lock();
+        try {
+            isLeader = (open == null);
+            if (isLeader) {
+                open = new ArrayList<Write>();
+            }
+            group = open;
+            group.add(w);
+            if (group.size() >= maxWrites) {
+                open = null;
+                closed.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        if (isLeader) {
+            awaitClose(group);
+            commit(group);
+        } else {
+            w.await();
+        }
+
+        if (w.failure instanceof RollbackException) {
+            throw (RollbackException) w.failure;
+        }
+        if (w.failure != null) {
+            throw new RollbackException(w.failure);
+        }
+    }
+
+    private void awaitClose(List<Write> group) {
+        long deadline = System.nanoTime() + windowNanos;
+        boolean interrupted = false;
+        lock.lock();
+        try {
+            long remaining;
+            while (open == group && (remaining = deadline - System.nanoTime()) > 0) {
+                try {
+                    closed.awaitNanos(remaining);
+                } catch (InterruptedException e) {
+                    // The others are counting on us: commit, then pass it on
+                    interrupted = true;
+                }
+            }
+            if (open == group) {
+                open = null;
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void commit(List<Write> group) {
+        PrintWriter debug = connectionPool.getDebugWriter();
+        Connection con = null;
+        try {
+            con = connectionPool.getConnection();
+            if (debug != null) {
+                debug.println("group commit: " + group.size() + " writes to " + dao.getTableName());
+            }
+
+            Exception failure = null;
+            try {
+                WriteBuffer b = new WriteBuffer(dao);
+                for (Write w : group) {
+                    b.add(w.kind, w.key, w.values);
+                }
+                con.setAutoCommit(false);
+                b.flush(con, debug);
+                con.commit();
+            } catch (SQLException | RollbackException e) {
+                failure = e;
+            }
+
+            if (failure == null) {
+                for (Write w : group) {
+                    w.complete(null);
+                }
+            } else if (failure instanceof SQLException && ConnPoolImpl.isFatal((SQLException) failure)) {
+                // Can't tell whether the commit happened, so don't run the
+                // writes again
+                throw (SQLException) failure;
+            } else {
+                if (debug != null) {
+                    debug.println("group commit failed (" + failure + "), writing one at a time");
+                }
+                con.rollback();
+                con.setAutoCommit(true);
+                for (Write w : group) {
+                    w.complete(writeAlone(con, w, debug));
+                }
+            }
+
+            connectionPool.releaseConnection(con);
+        } catch (SQLException e) {
+            if (con != null) {
+                try {
+                    con.close();
+                } catch (SQLException e2) {
+                    if (debug != null) {
+                        e2.printStackTrace(debug);
+                    }
+                }
+            }
+            for (Write w : group) {
+                w.complete(e);
+            }
+        } catch (RuntimeException | Error e) {
+            if (con != null) {
+                try {
+                    con.close();
+                } catch (SQLException e2) {
+                    if (debug != null) {
+                        e2.printStackTrace(debug);
+                    }
+                }
+            }
+            // Don't leave the others waiting forever
+            for (Write w : group) {
+                w.complete(new RollbackException("Group commit failed: " + e));
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Runs one write in its own transaction (autocommit is on).  Returns why
+     * it failed, or <tt>null</tt> if it succeeded.
+     */
+    private Exception writeAlone(Connection con, Write w, PrintWriter debug) throws SQLException {
+        List<Object[]> rows = Collections.singletonList((w.kind == WriteBuffer.DELETE) ? w.key.toArray() : w.values);
+        try {
+            if (w.kind == WriteBuffer.CREATE) {
+                dao.batchCreate(con, rows, debug);
+            } else if (w.kind == WriteBuffer.UPDATE) {
+                dao.batchUpdate(con, rows, debug);
+            } else {
+                dao.batchDelete(con, rows, debug);
+            }
+            return null;
+        } catch (SQLException e) {
+            if (ConnPoolImpl.isFatal(e)) {
+                throw e;
+            }
+            return e;
+        } catch (RollbackException e) {
+            return e;
+        }
+    }
+
+    private static final class Write {
+
+        final int kind;
+        final List<Object> key;
+        final Object[] values;
+        private final CountDownLatch done = new CountDownLatch(1);
+        // Set before done is counted down
+        Exception failure = null;
+
+        Write(int kind, List<Object> key, Object[] values) {
+            this.kind = kind;
+            this.key = key;
+            this.values = values;
+        }
+
+        void complete(Exception failure) {
+            if (done.getCount() == 0) {
+                return;
+            }
+            this.failure = failure;
+            done.countDown();
+        }
+
+        void await() {
+            // The write may be committed, so we must wait for the outcome
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    done.await();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
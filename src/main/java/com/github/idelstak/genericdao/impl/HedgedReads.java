@@ -0,0 +1,315 @@
+/*
+ * Copyright (c) 2012-2016 Jeffrey L. Eppinger.  All Rights Reserved.
+ *     You may use, modify and share this code for non-commercial purposes
+ *     as long a you comply with this license from Creative Commons:
+ *     Summary of license: http://creativecommons.org/licenses/by-nc-sa/3.0
+ *     Full Text of License: http://creativecommons.org/licenses/by-nc-sa/3.0/legalcode
+ *     Specifically, if you distribute your code for non-educational purposes,
+ *     you must include this copyright notice in your work.
+ *     If you wish to have broader rights, you must contact the copyright holder.
+ */
+package com.github.idelstak.genericdao.impl;
+
+import com.github.idelstak.genericdao.ReplicatedConnectionPool;
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Runs reads against a replicated pool, hedging the slow ones.
+ * <p>
+ * A hedged read is started on one replica.  If it has not finished after the
+ * hedge delay, the same read is started on another replica (or, if none can
+ * hand out a connection, the primary), and whichever
+ * finishes first wins.  The statement still running on the loser is
+ * cancelled.  The delay is either fixed or, by default, learned: the 95th
+ * percentile of the reads so far.  So about one read in 20 is hedged, and the
+ * slowest of those stop waiting on a slow replica.
+ */
+public class HedgedReads {
+
+    // Reads run on these threads while hedging, so the caller can wait with
+    // a timeout and then start the hedge.
+    private static final ExecutorService executor
+            = Executors.newCachedThreadPool(new PoolHousekeeper.DaemonThreadFactory("GenericDAO-Hedger"));
+
+    // Reads needed before a learned delay is trusted
+    private static final int MIN_SAMPLES = 100;
+    private static final double HEDGE_PERCENTILE = 95;
+
+    private final ReplicatedConnectionPool pool;
+    private final Borrower borrower;
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LongAdder hedgesFired = new LongAdder();
+    private final LongAdder hedgesWon = new LongAdder();
+    private volatile boolean enabled = false;
+    private volatile long delay = 0;  // millis, zero for learned
+
+    public HedgedReads(ReplicatedConnectionPool pool, Borrower borrower) {
+        this.pool = pool;
+        this.borrower = borrower;
+    }
+
+    public long getDelay() {
+        return delay;
+    }
+
+    public long getHedgesFired() {
+        return hedgesFired.sum();
+    }
+
+    public long getHedgesWon() {
+        return hedgesWon.sum();
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setDelay(long millis) {
+        delay = millis;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Gets read connections from the pool's replicas, which are numbered
+     * from 0.
+     */
+    public interface Borrower {
+        /**
+         * Chooses the replica a read tries first.
+         *
+         * @param avoid the replica not to choose, or -1
+         * @return the replica's number
+         */
+        int choose(int avoid);
+
+        /**
+         * Borrows a read connection from replica <tt>first</tt>, or, if it
+         * can't hand one out, from another replica (other than
+         * <tt>avoid</tt>), or else from the primary.
+         *
+         * @param first the replica to try first
+         * @param avoid the replica not to use, or -1
+         */
+        Connection borrow(int first, int avoid) throws SQLException;
+
+        /**
+         * Returns the number of the replica a connection came from, or -1 if
+         * it came from the primary.
+         */
+        int replicaOf(Connection c);
+    }
+
+    public <T> T execute(ReplicatedConnectionPool.ReadOperation<T> op) throws SQLException {
+        long hedgeDelay = getHedgeDelayNanos();
+        if (hedgeDelay < 0) {
+            return new Attempt<T>(op, null).call();
+        }
+
+        CompletionService<T> completion = new ExecutorCompletionService<T>(executor);
+        Attempt<T> first = new Attempt<T>(op, null);
+        Attempt<T> second = null;
+        Future<T> firstFuture = completion.submit(first);
+        Future<T> done = null;
+        try {
+            done = completion.poll(hedgeDelay, TimeUnit.NANOSECONDS);
+            if (done == null) {
+                hedgesFired.increment();
+                second = new Attempt<T>(op, first);
+                completion.submit(second);
+                done = completion.take();
+            }
+
+            if (second != null && isFailed(done)) {
+                // One failed.  Let the other one finish.
+                PrintWriter debug = pool.getDebugWriter();
+                if (debug != null) {
+                    debug.println("hedged read: one attempt failed, waiting for the other");
+                }
+                done = completion.take();
+            }
+
+            T result = done.get();
+            if (done != firstFuture) {
+                hedgesWon.increment();
+            }
+            return result;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted during a read", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof SQLException) {
+                throw (SQLException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new SQLException(cause);
+        } finally {
+            // Cancel the loser (or both, if we're giving up)
+            if (done != firstFuture) {
+                first.cancel();
+            }
+            if (second != null && (done == firstFuture || done == null)) {
+                second.cancel();
+            }
+        }
+    }
+
+    private static boolean isFailed(Future<?> f) throws InterruptedException {
+        try {
+            f.get();
+            return false;
+        } catch (ExecutionException e) {
+            return true;
+        }
+    }
+
+    /**
+     * Returns how long to wait before hedging, or -1 not to hedge.
+     */
+    private long getHedgeDelayNanos() {
+        if (!enabled || pool.getReplicas().length < 2) {
+            return -1;
+        }
+
+        long millis = delay;
+        if (millis > 0) {
+            return TimeUnit.MILLISECONDS.toNanos(millis);
+        }
+
+        if (latency.getCount() < MIN_SAMPLES) {
+            return -1;
+        }
+        return (long) (latency.getPercentileMillis(HEDGE_PERCENTILE) * 1000000);
+    }
+
+    /**
+     * One try at a read, on a connection of its own.
+     */
+    private class Attempt<T> implements Callable<T> {
+
+        private final ReplicatedConnectionPool.ReadOperation<T> op;
+        // The attempt this one hedges, if any
+        private final Attempt<T> hedged;
+        // The replica the attempt reads from (or is waiting to borrow from),
+        // so that a hedge goes elsewhere; -1 for the primary
+        private volatile int replica = -1;
+        private volatile Connection con = null;
+        private volatile boolean cancelled = false;
+        // Held while a cancel is sent, so it can't reach the connection once
+        // it's back in the pool (and maybe lent out).  Sending it may take a
+        // round trip (Connector/J opens a connection to send KILL QUERY), so
+        // giveBack() blocks on the lock rather than spinning.
+        private final ReentrantLock cancelLock = new ReentrantLock();
+        // Guarded by cancelLock
+        private boolean isReturned = false;
+
+        Attempt(ReplicatedConnectionPool.ReadOperation<T> op, Attempt<T> hedged) {
+            this.op = op;
+            this.hedged = hedged;
+        }
+
+        public T call() throws SQLException {
+            long start = System.nanoTime();
+            // Not where the hedged attempt is stuck, even if it's still
+            // waiting for a connection there
+            int avoid = (hedged == null) ? -1 : hedged.replica;
+            int first = borrower.choose(avoid);
+            replica = first;
+            Connection c = borrower.borrow(first, avoid);
+            replica = borrower.replicaOf(c);
+            con = c;
+            if (cancelled) {
+                giveBack(c, false);
+                return null;
+            }
+
+            T result;
+            try {
+                result = op.execute(c);
+            } catch (SQLException e) {
+                // If cancelled, most likely from the cancel.  The connection
+                // is fine.
+                giveBack(c, !cancelled);
+                throw e;
+            } catch (RuntimeException | Error e) {
+                giveBack(c, true);
+                throw e;
+            }
+
+            giveBack(c, false);
+            if (!cancelled) {
+                latency.recordNanos(System.nanoTime() - start);
+            }
+            return result;
+        }
+
+        /**
+         * Releases (or closes) the connection, once no cancel is being sent
+         * on it.
+         */
+        private void giveBack(Connection c, boolean close) throws SQLException {
+            cancelLock.lock();
+            try {
+                isReturned = true;
+            } finally {
+                cancelLock.unlock();
+            }
+
+            if (close) {
+                c.close();
+            } else {
+                pool.releaseConnection(c);
+            }
+        }
+
+        /**
+         * Stops the attempt, if it's still running.  Its result will be
+         * ignored.
+         */
+        void cancel() {
+            if (cancelled) {
+                return;
+            }
+
+            cancelled = true;
+            cancelLock.lock();
+            try {
+                Connection c = con;
+                if (c == null || isReturned) {
+                    return;  // not borrowed yet (it will see cancelled), or returned
+                }
+                PooledConnection p = PooledConnection.of(c);
+                if (p != null) {
+                    p.cancel();
+                }
+            } catch (SQLException e) {
+                PrintWriter debug = pool.getDebugWriter();
+                if (debug != null) {
+                    e.printStackTrace(debug);
+                }
+            } finally {
+                cancelLock.unlock();
+            }
+        }
+    }
+}
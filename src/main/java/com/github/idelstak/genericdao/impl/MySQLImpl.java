@@ -12,6 +12,7 @@ package com.github.idelstak.genericdao.impl;
 
 import com.github.idelstak.genericdao.ConnectionPool;
 import com.github.idelstak.genericdao.DAOException;
+import com.github.idelstak.genericdao.LockMode;
 import com.github.idelstak.genericdao.RollbackException;
 import com.github.idelstak.genericdao.impl.matcharg.MatchArgLeafNode;
 import com.github.idelstak.genericdao.impl.matcharg.MatchOp;
@@ -22,6 +23,7 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.List;
 
 public class MySQLImpl<B> extends GenericDAOImpl<B> {
 
@@ -30,6 +32,14 @@ public class MySQLImpl<B> extends GenericDAOImpl<B> {
         super(beanClass, tableName, connectionPool);
     }
 
+    private MySQLImpl(MySQLImpl<B> template, String tableName, ConnectionPool connectionPool) {
+        super(template, tableName, connectionPool);
+    }
+
+    public GenericDAOImpl<B> forTable(String tableName, ConnectionPool connectionPool) {
+        return new MySQLImpl<B>(this, tableName, connectionPool);
+    }
+
     protected String getBlobTypeDeclaration() {
         return "LONGBLOB";
     }
@@ -51,6 +61,15 @@ public class MySQLImpl<B> extends GenericDAOImpl<B> {
         return null;
     }
 
+    @Override
+    protected String getLockClause(LockMode lockMode) {
+        // Understood by 5.7 as well as 8.0 (which also takes FOR SHARE)
+        if (lockMode == LockMode.SHARED) {
+            return " LOCK IN SHARE MODE";
+        }
+        return super.getLockClause(lockMode);
+    }
+
     protected String getLikeOperator() {
         return "LIKE BINARY";
     }
@@ -64,7 +83,7 @@ public class MySQLImpl<B> extends GenericDAOImpl<B> {
     }
 
     protected Object fetchMinMaxValue(Connection con, MatchArgLeafNode arg,
-            String tableName, PrintWriter debug) throws SQLException {
+            String tableName, LockMode lockMode, PrintWriter debug) throws SQLException {
         Property prop = arg.getProperty();
         StringBuilder sql = new StringBuilder();
         sql.append("select ");
@@ -79,7 +98,7 @@ public class MySQLImpl<B> extends GenericDAOImpl<B> {
         sql.append(prop.getName());
         sql.append(") as matchValue from ");
         sql.append(tableName);
-        sql.append(" for update");
+        sql.append(getLockClause(lockMode));
 
         if (debug != null) {
             debug.println("fixMaxMin: " + sql);
@@ -103,24 +122,13 @@ public class MySQLImpl<B> extends GenericDAOImpl<B> {
 
     @Override
     protected Object createAutoIncrement(Connection con, B bean, PrintWriter debug) throws SQLException, RollbackException {
-
-        StringBuilder b = new StringBuilder();
-        b.append("INSERT INTO ");
-        b.append(tableName);
-        b.append(" (");
-        b.append(columnNamesCommaSeparated);
-        b.append(") values (default ");
-        if (nonPrimaryKeyColumnQuestionsCommaSeparated.length() > 0) {
-            b.append(", ");
-            b.append(nonPrimaryKeyColumnQuestionsCommaSeparated);
-        }
-        b.append(")");
-
-        String sql = b.toString();
+        String sql = getAutoIncrementInsertSql();
         if (debug != null) {
             debug.println("createAutoIncrement: " + sql);
         }
-        try (PreparedStatement pstmt = con.prepareStatement(sql)) {
+        // The driver returns the key with the update count, saving a
+        // SELECT LAST_INSERT_ID() round trip
+        try (PreparedStatement pstmt = con.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
             for (int i = 1; i < properties.length; i++) {
                 Object value = getBeanValue(bean, properties[i]);
                 if (debug != null) {
@@ -130,30 +138,90 @@ public class MySQLImpl<B> extends GenericDAOImpl<B> {
                 pstmt.setObject(i, value);
             }
             pstmt.executeUpdate();
-        }
 
-        Object id;
-        try (Statement stmt = con.createStatement()) {
-            if (debug != null) {
-                debug.println("createAutoIncrement: SELECT LAST_INSERT_ID()");
-            }   ResultSet rs = stmt.executeQuery("SELECT LAST_INSERT_ID()");
-            rs.next();
-            id = rs.getObject("LAST_INSERT_ID()");
+            ResultSet rs = pstmt.getGeneratedKeys();
+            if (!rs.next()) {
+                throw new RollbackException("AssertionError: No generated key returned");
+            }
+            Object id = rs.getObject(1);
             if (debug != null) {
-                debug.println("createAutoIncrement: ...LAST_INSERT_ID()=" + id);
+                debug.println("createAutoIncrement: ...generated key=" + id);
             }
+            return toKeyValue(id);
         }
+    }
+
+    @Override
+    protected Object[] createAllAutoIncrement(Connection con, List<? extends B> beans, PrintWriter debug)
+            throws SQLException, RollbackException {
+        String sql = getAutoIncrementInsertSql();
+        if (debug != null) {
+            debug.println("createAllAutoIncrement: " + sql + " (" + beans.size() + " rows)");
+        }
+        // One batch: with rewriteBatchedStatements=true, Connector/J sends it
+        // as multi-row INSERTs, and still returns every row's key
+        Object[] ids = new Object[beans.size()];
+        try (PreparedStatement pstmt = con.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
+            for (B bean : beans) {
+                for (int i = 1; i < properties.length; i++) {
+                    Object value = getBeanValue(bean, properties[i]);
+                    checkMaxStringLength(properties[i], value);
+                    pstmt.setObject(i, value);
+                }
+                pstmt.addBatch();
+            }
+            pstmt.executeBatch();
+
+            ResultSet rs = pstmt.getGeneratedKeys();
+            int n = 0;
+            while (rs.next()) {
+                if (n == ids.length) {
+                    throw new RollbackException("AssertionError: More generated keys than rows: " + (n + 1));
+                }
+                ids[n++] = toKeyValue(rs.getObject(1));
+            }
+            if (n != ids.length) {
+                throw new RollbackException("AssertionError: " + n + " generated keys for " + ids.length + " rows");
+            }
+        }
+        return ids;
+    }
+
+    @Override
+    protected int getMaxParameters() {
+        // The client/server protocol counts them in 16 bits
+        return 65535;
+    }
+
+    private String getAutoIncrementInsertSql() {
+        StringBuilder b = new StringBuilder();
+        b.append("INSERT INTO ");
+        b.append(tableName);
+        b.append(" (");
+        b.append(columnNamesCommaSeparated);
+        b.append(") values (default ");
+        if (nonPrimaryKeyColumnQuestionsCommaSeparated.length() > 0) {
+            b.append(", ");
+            b.append(nonPrimaryKeyColumnQuestionsCommaSeparated);
+        }
+        b.append(")");
+        return b.toString();
+    }
 
+    /**
+     * Converts a generated key to the type of the primary key property.
+     */
+    private Object toKeyValue(Object id) {
         if (id instanceof BigInteger) {
             BigInteger bigInt = (BigInteger) id;
             id = bigInt.longValue();
         }
 
+        long x = ((Number) id).longValue();
         if (properties[0].getType() == long.class) {
-            return id;
+            return x;
         }
 
-        long x = (Long) id;
         int i = (int) x;
         return i;
     }
@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2012-2016 Jeffrey L. Eppinger.  All Rights Reserved.
+ *     You may use, modify and share this code for non-commercial purposes
+ *     as long a you comply with this license from Creative Commons:
+ *     Summary of license: http://creativecommons.org/licenses/by-nc-sa/3.0
+ *     Full Text of License: http://creativecommons.org/licenses/by-nc-sa/3.0/legalcode
+ *     Specifically, if you distribute your code for non-educational purposes,
+ *     you must include this copyright notice in your work.
+ *     If you wish to have broader rights, you must contact the copyright holder.
+ */
+package com.github.idelstak.genericdao.impl;
+
+import java.io.PrintWriter;
+import java.lang.ref.WeakReference;
+import java.sql.SQLException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One daemon thread that schedules the background work for every
+ * connection pool in the JVM: evicting idle and expired connections and
+ * detecting leaks.  Talking to the database is done on a separate set of
+ * daemon filler threads, in parallel: opening connections (warm-up and
+ * refilling pools ahead of demand) can take a full network round trip and
+ * authentication, and closing one can hang on a dead server, which must not
+ * hold up the housekeeping of every other pool.
+ * <p>
+ * Pools are only weakly referenced, so a pool that is no longer used is
+ * dropped from the schedule when it is garbage collected.
+ */
+final class PoolHousekeeper {
+
+    private static final ScheduledExecutorService scheduler
+            = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("GenericDAO-Housekeeper"));
+    private static final ExecutorService filler
+            = Executors.newCachedThreadPool(new DaemonThreadFactory("GenericDAO-Filler"));
+
+    private PoolHousekeeper() {
+    }
+
+    static void register(ConnPoolImpl pool) {
+        new Task(pool).scheduleNext(pool);
+    }
+
+    static <T> Future<T> fill(Callable<T> task) {
+        return filler.submit(task);
+    }
+
+    static void closeLater(final PooledConnection pc) {
+        filler.execute(new Runnable() {
+            public void run() {
+                try {
+                    pc.physical.close();
+                } catch (SQLException e) {
+                    PrintWriter writer = pc.pool.getDebugWriter();
+                    if (writer != null) {
+                        e.printStackTrace(writer);
+                    }
+                }
+            }
+        });
+    }
+
+    private static class Task implements Runnable {
+
+        private final WeakReference<ConnPoolImpl> poolRef;
+
+        Task(ConnPoolImpl pool) {
+            poolRef = new WeakReference<ConnPoolImpl>(pool);
+        }
+
+        public void run() {
+            ConnPoolImpl pool = poolRef.get();
+            if (pool == null) {
+                return;
+            }
+
+            try {
+                pool.housekeep();
+            } catch (RuntimeException e) {
+                PrintWriter writer = pool.getDebugWriter();
+                if (writer != null) {
+                    e.printStackTrace(writer);
+                }
+            }
+            scheduleNext(pool);
+        }
+
+        void scheduleNext(ConnPoolImpl pool) {
+            scheduler.schedule(this, pool.getHousekeepingDelay(), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    static class DaemonThreadFactory implements ThreadFactory {
+
+        private final String name;
+        private final AtomicInteger count = new AtomicInteger();
+
+        DaemonThreadFactory(String name) {
+            this.name = name;
+        }
+
+        public Thread newThread(Runnable r) {
+            int n = count.incrementAndGet();
+            Thread t = new Thread(r, n == 1 ? name : name + "-" + n);
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2012-2016 Jeffrey L. Eppinger.  All Rights Reserved.
+ *     You may use, modify and share this code for non-commercial purposes
+ *     as long a you comply with this license from Creative Commons:
+ *     Summary of license: http://creativecommons.org/licenses/by-nc-sa/3.0
+ *     Full Text of License: http://creativecommons.org/licenses/by-nc-sa/3.0/legalcode
+ *     Specifically, if you distribute your code for non-educational purposes,
+ *     you must include this copyright notice in your work.
+ *     If you wish to have broader rights, you must contact the copyright holder.
+ */
+package com.github.idelstak.genericdao.impl;
+
+import com.github.idelstak.genericdao.ConnectionPoolMXBean;
+
+/**
+ * The MBean registered for a pool.  Each attribute is read from the pool's
+ * metrics when asked for, so values are live, and a console polling every
+ * attribute does not take a whole snapshot (with its percentiles) for each.
+ */
+class PoolMXBeanImpl implements ConnectionPoolMXBean {
+
+    private final ConnPoolImpl pool;
+
+    PoolMXBeanImpl(ConnPoolImpl pool) {
+        this.pool = pool;
+    }
+
+    public int getTotalConnections() {
+        return pool.getSize();
+    }
+
+    public int getActiveConnections() {
+        return (int) pool.metrics.active.sum();
+    }
+
+    public int getIdleConnections() {
+        return Math.max(0, pool.getSize() - (int) pool.metrics.active.sum());
+    }
+
+    public int getPendingThreads() {
+        return pool.getPendingThreads();
+    }
+
+    public int getConcurrencyLimit() {
+        return pool.getConcurrencyLimit();
+    }
+
+    public long getBorrowCount() {
+        return pool.metrics.borrows.sum();
+    }
+
+    public long getBorrowTimeoutCount() {
+        return pool.metrics.borrowTimeouts.sum();
+    }
+
+    public long getConnectionsCreated() {
+        return pool.metrics.connectionsCreated.sum();
+    }
+
+    public long getConnectionsEvicted() {
+        return pool.metrics.connectionsEvicted.sum();
+    }
+
+    public long getConnectionsDiscarded() {
+        return pool.metrics.connectionsDiscarded.sum();
+    }
+
+    public long getLeaksDetected() {
+        return pool.metrics.leaksDetected.sum();
+    }
+
+    public long getLeaksReclaimed() {
+        return pool.metrics.leaksReclaimed.sum();
+    }
+
+    public long getStatementCacheHits() {
+        return pool.metrics.statementCacheHits.sum();
+    }
+
+    public long getStatementCacheMisses() {
+        return pool.metrics.statementCacheMisses.sum();
+    }
+
+    public double getBorrowWaitMeanMillis() {
+        return pool.metrics.borrowWait.getMeanMillis();
+    }
+
+    public double getBorrowWaitP50Millis() {
+        return pool.metrics.borrowWait.getPercentileMillis(50);
+    }
+
+    public double getBorrowWaitP95Millis() {
+        return pool.metrics.borrowWait.getPercentileMillis(95);
+    }
+
+    public double getBorrowWaitP99Millis() {
+        return pool.metrics.borrowWait.getPercentileMillis(99);
+    }
+
+    public double getBorrowWaitMaxMillis() {
+        return pool.metrics.borrowWait.getMaxMillis();
+    }
+
+    public double getConnectionCreationMeanMillis() {
+        return pool.metrics.connectionCreation.getMeanMillis();
+    }
+
+    public double getConnectionCreationP99Millis() {
+        return pool.metrics.connectionCreation.getPercentileMillis(99);
+    }
+
+    public double getConnectionCreationMaxMillis() {
+        return pool.metrics.connectionCreation.getMaxMillis();
+    }
+
+    public double getUsageMeanMillis() {
+        return pool.metrics.usage.getMeanMillis();
+    }
+
+    public double getUsageP50Millis() {
+        return pool.metrics.usage.getPercentileMillis(50);
+    }
+
+    public double getUsageP95Millis() {
+        return pool.metrics.usage.getPercentileMillis(95);
+    }
+
+    public double getUsageP99Millis() {
+        return pool.metrics.usage.getPercentileMillis(99);
+    }
+
+    public double getUsageMaxMillis() {
+        return pool.metrics.usage.getMaxMillis();
+    }
+
+    public String getURL() {
+        return pool.getURL();
+    }
+
+    public int getMinSize() {
+        return pool.getMinSize();
+    }
+
+    public int getMaxSize() {
+        return pool.getMaxSize();
+    }
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright (c) 2012-2016 Jeffrey L. Eppinger.  All Rights Reserved.
+ *     You may use, modify and share this code for non-commercial purposes
+ *     as long a you comply with this license from Creative Commons:
+ *     Summary of license: http://creativecommons.org/licenses/by-nc-sa/3.0
+ *     Full Text of License: http://creativecommons.org/licenses/by-nc-sa/3.0/legalcode
+ *     Specifically, if you distribute your code for non-educational purposes,
+ *     you must include this copyright notice in your work.
+ *     If you wish to have broader rights, you must contact the copyright holder.
+ */
+package com.github.idelstak.genericdao.impl;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The counters and histograms a connection pool records as it runs.
+ * Everything here is striped (<tt>LongAdder</tt>), so recording does not
+ * make borrowing threads contend on a shared counter.
+ */
+public class PoolMetrics {
+
+    final LongAdder active = new LongAdder();
+    final LongAdder borrows = new LongAdder();
+    final LongAdder borrowTimeouts = new LongAdder();
+    final LongAdder connectionsCreated = new LongAdder();
+    final LongAdder connectionsEvicted = new LongAdder();
+    final LongAdder connectionsDiscarded = new LongAdder();
+    final LongAdder leaksDetected = new LongAdder();
+    final LongAdder leaksReclaimed = new LongAdder();
+    final LongAdder statementCacheHits = new LongAdder();
+    final LongAdder statementCacheMisses = new LongAdder();
+
+    final LatencyHistogram borrowWait = new LatencyHistogram();
+    final LatencyHistogram connectionCreation = new LatencyHistogram();
+    final LatencyHistogram usage = new LatencyHistogram();
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright (c) 2012-2016 Jeffrey L. Eppinger.  All Rights Reserved.
+ *     You may use, modify and share this code for non-commercial purposes
+ *     as long a you comply with this license from Creative Commons:
+ *     Summary of license: http://creativecommons.org/licenses/by-nc-sa/3.0
+ *     Full Text of License: http://creativecommons.org/licenses/by-nc-sa/3.0/legalcode
+ *     Specifically, if you distribute your code for non-educational purposes,
+ *     you must include this copyright notice in your work.
+ *     If you wish to have broader rights, you must contact the copyright holder.
+ */
+package com.github.idelstak.genericdao.impl;
+
+import com.github.idelstak.genericdao.ConnectionPoolMXBean;
+
+/**
+ * The values of a pool's metrics at one moment.
+ */
+class PoolSnapshot implements ConnectionPoolMXBean {
+
+    private final int totalConnections;
+    private final int activeConnections;
+    private final int idleConnections;
+    private final int pendingThreads;
+    private final int concurrencyLimit;
+    private final long borrowCount;
+    private final long borrowTimeoutCount;
+    private final long connectionsCreated;
+    private final long connectionsEvicted;
+    private final long connectionsDiscarded;
+    private final long leaksDetected;
+    private final long leaksReclaimed;
+    private final long statementCacheHits;
+    private final long statementCacheMisses;
+    private final double borrowWaitMeanMillis;
+    private final double borrowWaitP50Millis;
+    private final double borrowWaitP95Millis;
+    private final double borrowWaitP99Millis;
+    private final double borrowWaitMaxMillis;
+    private final double connectionCreationMeanMillis;
+    private final double connectionCreationP99Millis;
+    private final double connectionCreationMaxMillis;
+    private final double usageMeanMillis;
+    private final double usageP50Millis;
+    private final double usageP95Millis;
+    private final double usageP99Millis;
+    private final double usageMaxMillis;
+    private final String url;
+    private final int minSize;
+    private final int maxSize;
+
+    PoolSnapshot(ConnPoolImpl pool) {
+        PoolMetrics m = pool.metrics;
+        int total = pool.getSize();
+        int active = (int) m.active.sum();
+        totalConnections = total;
+        activeConnections = active;
+        idleConnections = Math.max(0, total - active);
+        pendingThreads = pool.getPendingThreads();
+        concurrencyLimit = pool.getConcurrencyLimit();
+        borrowCount = m.borrows.sum();
+        borrowTimeoutCount = m.borrowTimeouts.sum();
+        connectionsCreated = m.connectionsCreated.sum();
+        connectionsEvicted = m.connectionsEvicted.sum();
+        connectionsDiscarded = m.connectionsDiscarded.sum();
+        leaksDetected = m.leaksDetected.sum();
+        leaksReclaimed = m.leaksReclaimed.sum();
+        statementCacheHits = m.statementCacheHits.sum();
+        statementCacheMisses = m.statementCacheMisses.sum();
+        borrowWaitMeanMillis = m.borrowWait.getMeanMillis();
+        borrowWaitP50Millis = m.borrowWait.getPercentileMillis(50);
+        borrowWaitP95Millis = m.borrowWait.getPercentileMillis(95);
+        borrowWaitP99Millis = m.borrowWait.getPercentileMillis(99);
+        borrowWaitMaxMillis = m.borrowWait.getMaxMillis();
+        connectionCreationMeanMillis = m.connectionCreation.getMeanMillis();
+        connectionCreationP99Millis = m.connectionCreation.getPercentileMillis(99);
+        connectionCreationMaxMillis = m.connectionCreation.getMaxMillis();
+        usageMeanMillis = m.usage.getMeanMillis();
+        usageP50Millis = m.usage.getPercentileMillis(50);
+        usageP95Millis = m.usage.getPercentileMillis(95);
+        usageP99Millis = m.usage.getPercentileMillis(99);
+        usageMaxMillis = m.usage.getMaxMillis();
+        url = pool.getURL();
+        minSize = pool.getMinSize();
+        maxSize = pool.getMaxSize();
+    }
+
+    public int getTotalConnections() {
+        return totalConnections;
+    }
+
+    public int getActiveConnections() {
+        return activeConnections;
+    }
+
+    public int getIdleConnections() {
+        return idleConnections;
+    }
+
+    public int getPendingThreads() {
+        return pendingThreads;
+    }
+
+    public int getConcurrencyLimit() {
+        return concurrencyLimit;
+    }
+
+    public long getBorrowCount() {
+        return borrowCount;
+    }
+
+    public long getBorrowTimeoutCount() {
+        return borrowTimeoutCount;
+    }
+
+    public long getConnectionsCreated() {
+        return connectionsCreated;
+    }
+
+    public long getConnectionsEvicted() {
+        return connectionsEvicted;
+    }
+
+    public long getConnectionsDiscarded() {
+        return connectionsDiscarded;
+    }
+
+    public long getLeaksDetected() {
+        return leaksDetected;
+    }
+
+    public long getLeaksReclaimed() {
+        return leaksReclaimed;
+    }
+
+    public long getStatementCacheHits() {
+        return statementCacheHits;
+    }
+
+    public long getStatementCacheMisses() {
+        return statementCacheMisses;
+    }
+
+    public double getBorrowWaitMeanMillis() {
+        return borrowWaitMeanMillis;
+    }
+
+    public double getBorrowWaitP50Millis() {
+        return borrowWaitP50Millis;
+    }
+
+    public double getBorrowWaitP95Millis() {
+        return borrowWaitP95Millis;
+    }
+
+    public double getBorrowWaitP99Millis() {
+        return borrowWaitP99Millis;
+    }
+
+    public double getBorrowWaitMaxMillis() {
+        return borrowWaitMaxMillis;
+    }
+
+    public double getConnectionCreationMeanMillis() {
+        return connectionCreationMeanMillis;
+    }
+
+    public double getConnectionCreationP99Millis() {
+        return connectionCreationP99Millis;
+    }
+
+    public double getConnectionCreationMaxMillis() {
+        return connectionCreationMaxMillis;
+    }
+
+    public double getUsageMeanMillis() {
+        return usageMeanMillis;
+    }
+
+    public double getUsageP50Millis() {
+        return usageP50Millis;
+    }
+
+    public double getUsageP95Millis() {
+        return usageP95Millis;
+    }
+
+    public double getUsageP99Millis() {
+        return usageP99Millis;
+    }
+
+    public double getUsageMaxMillis() {
+        return usageMaxMillis;
+    }
+
+    public String getURL() {
+        return url;
+    }
+
+    public int getMinSize() {
+        return minSize;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public String toString() {
+        return "PoolStatistics(total=" + totalConnections + ", active=" + activeConnections
+                + ", idle=" + idleConnections + ", pending=" + pendingThreads + ", limit=" + concurrencyLimit
+                + ", borrows=" + borrowCount + ", leaks=" + leaksDetected + ", borrowWaitP99=" + borrowWaitP99Millis + "ms"
+                + ", usageP99=" + usageP99Millis + "ms)";
+    }
+}
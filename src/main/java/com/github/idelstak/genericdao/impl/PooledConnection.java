@@ -0,0 +1,359 @@
+/*
+ * Copyright (c) 2012-2016 Jeffrey L. Eppinger.  All Rights Reserved.
+ *     You may use, modify and share this code for non-commercial purposes
+ *     as long a you comply with this license from Creative Commons:
+ *     Summary of license: http://creativecommons.org/licenses/by-nc-sa/3.0
+ *     Full Text of License: http://creativecommons.org/licenses/by-nc-sa/3.0/legalcode
+ *     Specifically, if you distribute your code for non-educational purposes,
+ *     you must include this copyright notice in your work.
+ *     If you wish to have broader rights, you must contact the copyright holder.
+ */
+package com.github.idelstak.genericdao.impl;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The pool's bookkeeping for one physical connection.
+ * <p>
+ * Callers never see the physical connection.  They are handed a dynamic proxy
+ * which delegates to it, so that <tt>close()</tt> on a borrowed connection
+ * goes back through the pool (and frees its slot) rather than silently
+ * leaking it.
+ */
+public class PooledConnection implements InvocationHandler {
+
+    static final int IDLE = 0;
+    static final int IN_USE = 1;
+    static final int REMOVED = 2;
+    static final int RETURNING = 3;
+
+    final ConnPoolImpl pool;
+    final Connection physical;
+    final Connection proxy;
+    final long createdAt;  // time in millis
+    // Between 0 and 1.  Spreads out max lifetime expiry (see ConnPoolImpl).
+    final double jitter = ThreadLocalRandom.current().nextDouble();
+
+    // Borrowers claim a connection by moving it from IDLE to IN_USE, so
+    // the pool never needs a lock to hand one out.  Likewise, whoever moves
+    // it out of IN_USE (to RETURNING on release, or to REMOVED on close or
+    // leak reclaim) is the only one to give back its slot.
+    final AtomicInteger state = new AtomicInteger(IN_USE);
+    // True while the connection is (or may be) in the pool's idle deque
+    final AtomicBoolean queued = new AtomicBoolean();
+    volatile long lastUsed;  // time in millis
+    volatile long borrowedAt;  // System.nanoTime() when last handed out
+    // Where it was last handed out, for a sample of borrows, if leak
+    // detection is on
+    volatile Throwable borrowTrace = null;
+    volatile boolean leakReported = false;
+    // The pool's generation when this connection was opened.  Connections
+    // from before the last purge are not handed out again.
+    final int generation;
+    // Set when the connection has failed in a way that means it is unusable
+    volatile boolean broken = false;
+    // The statement currently executing on the holder's thread, if any
+    volatile Statement executing = null;
+    // The quota the current holder's borrow counts against, if any
+    volatile Semaphore quota = null;
+    // When the holder's transaction runs out of time (System.nanoTime()), or
+    // 0 for no limit.  Only touched by the thread holding the connection.
+    long deadline = 0;
+
+    // The physical connection's settings when opened, which every borrower
+    // starts out with
+    private final boolean defaultAutoCommit;
+    private final int defaultIsolation;
+    private final boolean defaultReadOnly;
+    // The physical connection's settings, and the settings the holder has
+    // asked for.  The physical connection is only changed when a statement is
+    // about to run (see applySettings()), so settings that are put back, or
+    // asked for again, cost no calls to the driver.  Only touched by the
+    // thread holding the connection.
+    private boolean autoCommit;
+    private int isolation;
+    private boolean readOnly;
+    private boolean wantAutoCommit;
+    private int wantIsolation;
+    private boolean wantReadOnly;
+
+    // Prepared statements by SQL (or by SQL and autoGeneratedKeys flag),
+    // least recently used first.  Only touched by the thread holding the
+    // connection.
+    private final LinkedHashMap<Object, CachedStatement> statementCache
+            = new LinkedHashMap<Object, CachedStatement>(16, 0.75f, true);
+
+    PooledConnection(ConnPoolImpl pool, Connection physical) throws SQLException {
+        this.pool = pool;
+        this.physical = physical;
+        this.defaultAutoCommit = physical.getAutoCommit();
+        this.defaultIsolation = physical.getTransactionIsolation();
+        this.defaultReadOnly = physical.isReadOnly();
+        this.autoCommit = wantAutoCommit = defaultAutoCommit;
+        this.isolation = wantIsolation = defaultIsolation;
+        this.readOnly = wantReadOnly = defaultReadOnly;
+        this.proxy = (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                new Class<?>[]{Connection.class}, this);
+        this.generation = pool.getGeneration();
+        this.createdAt = System.currentTimeMillis();
+        this.lastUsed = createdAt;
+    }
+
+    /**
+     * Returns the bookkeeping for a connection handed out by a pool, or
+     * <tt>null</tt> if the connection did not come from a pool.
+     */
+    public static PooledConnection of(Connection c) {
+        if (c == null || !Proxy.isProxyClass(c.getClass())) {
+            return null;
+        }
+
+        InvocationHandler h = Proxy.getInvocationHandler(c);
+        if (h instanceof PooledConnection) {
+            return (PooledConnection) h;
+        }
+        return null;
+    }
+
+    boolean isClosed() {
+        return state.get() == REMOVED;
+    }
+
+    /**
+     * Called when the connection goes back to the pool.  Statements the
+     * holder forgot to close become free for the next holder.
+     */
+    void freeStatements() throws SQLException {
+        // Copied, since free() may uncache the statement
+        for (CachedStatement cs : new ArrayList<CachedStatement>(statementCache.values())) {
+            cs.free();
+        }
+    }
+
+    /**
+     * Takes a statement out of the cache, to be closed once it's free.
+     */
+    void uncache(CachedStatement cs) {
+        if (statementCache.get(cs.key) == cs) {
+            statementCache.remove(cs.key);
+        }
+        cs.evicted = true;
+    }
+
+    /**
+     * Called when the connection goes back to the pool.  The next borrower
+     * gets the default settings, but the physical connection is not changed
+     * until it runs a statement with them.
+     */
+    void restoreDefaults() {
+        wantAutoCommit = defaultAutoCommit;
+        wantIsolation = defaultIsolation;
+        wantReadOnly = defaultReadOnly;
+        deadline = 0;
+    }
+
+    /**
+     * Makes the physical connection's settings those the holder has asked
+     * for.  Called before anything that may depend on them.
+     */
+    void applySettings() throws SQLException {
+        try {
+            // Read-only and isolation can't change inside a transaction, so
+            // set them while autocommit (if it's being turned off) is still on
+            if (wantAutoCommit && !autoCommit) {
+                physical.setAutoCommit(true);
+                autoCommit = true;
+            }
+            if (readOnly != wantReadOnly) {
+                physical.setReadOnly(wantReadOnly);
+                readOnly = wantReadOnly;
+            }
+            if (isolation != wantIsolation) {
+                physical.setTransactionIsolation(wantIsolation);
+                isolation = wantIsolation;
+            }
+            if (autoCommit != wantAutoCommit) {
+                physical.setAutoCommit(wantAutoCommit);
+                autoCommit = wantAutoCommit;
+            }
+        } catch (SQLException e) {
+            checkFatal(e);
+            throw e;
+        }
+    }
+
+    private Object trackSetting(String name, Object[] args) throws SQLException {
+        switch (name) {
+            case "getAutoCommit":
+                return wantAutoCommit;
+            case "getTransactionIsolation":
+                return wantIsolation;
+            case "isReadOnly":
+                return wantReadOnly;
+            case "setAutoCommit":
+                wantAutoCommit = (Boolean) args[0];
+                if (wantAutoCommit && !autoCommit) {
+                    // Commits the current transaction, so it's not put off
+                    applySettings();
+                }
+                return null;
+            case "setTransactionIsolation":
+                wantIsolation = (Integer) args[0];
+                return null;
+            default:
+                wantReadOnly = (Boolean) args[0];
+                return null;
+        }
+    }
+
+    /**
+     * Prepares a statement, or takes it from the cache.
+     *
+     * @param autoGeneratedKeys the flag, or <tt>null</tt> if not given
+     */
+    private PreparedStatement prepareStatement(String sql, Integer autoGeneratedKeys)
+            throws SQLException {
+        int cacheSize = pool.getStatementCacheSize();
+        Object key = (autoGeneratedKeys == null) ? sql : Arrays.asList(sql, autoGeneratedKeys);
+        CachedStatement cs = statementCache.get(key);
+        if (cs != null && !cs.inUse) {
+            pool.metrics.statementCacheHits.increment();
+            cs.inUse = true;
+            return (PreparedStatement) cs.proxy;
+        }
+
+        pool.metrics.statementCacheMisses.increment();
+        if (cs != null || cacheSize <= 0) {
+            // Already handed out (the holder is preparing the same SQL twice)
+            // or caching is off: not cached
+            return (PreparedStatement) new PooledStatement(this,
+                    prepareStatement(physical, sql, autoGeneratedKeys),
+                    PreparedStatement.class).proxy;
+        }
+
+        cs = new CachedStatement(this, key, prepareStatement(physical, sql, autoGeneratedKeys));
+        cs.inUse = true;
+        statementCache.put(key, cs);
+
+        // Evict least recently used statements
+        for (Iterator<CachedStatement> iter = statementCache.values().iterator();
+                iter.hasNext() && statementCache.size() > cacheSize;) {
+            CachedStatement eldest = iter.next();
+            iter.remove();
+            eldest.evicted = true;
+            if (!eldest.inUse) {
+                eldest.physical.close();
+            }
+        }
+
+        return (PreparedStatement) cs.proxy;
+    }
+
+    private static PreparedStatement prepareStatement(Connection con, String sql,
+            Integer autoGeneratedKeys) throws SQLException {
+        if (autoGeneratedKeys == null) {
+            return con.prepareStatement(sql);
+        }
+        return con.prepareStatement(sql, autoGeneratedKeys);
+    }
+
+    /**
+     * Cancels the statement currently executing on this connection, if any.
+     * Can be called from any thread.
+     */
+    void cancel() throws SQLException {
+        Statement s = executing;
+        if (s != null) {
+            s.cancel();
+        }
+    }
+
+    /**
+     * Called with every exception thrown by the physical connection or its
+     * statements.  If it means the connection is gone, the pool is told.
+     */
+    void checkFatal(Throwable t) {
+        if (t instanceof SQLException && ConnPoolImpl.isFatal((SQLException) t)) {
+            broken = true;
+            pool.purge(t);
+        }
+    }
+
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        switch (method.getName()) {
+            case "equals":
+                return proxy == args[0];
+            case "hashCode":
+                return System.identityHashCode(proxy);
+            case "toString":
+                return "Pooled(" + physical + ")";
+            case "close":
+                pool.discardConnection(this);
+                return null;
+            case "prepareStatement":
+                if (isClosed()) {
+                    throw new SQLException("Connection has been closed");
+                }
+                // prepareStatement(String) or prepareStatement(String, int
+                // autoGeneratedKeys); the other overloads aren't cached
+                Class<?>[] types = method.getParameterTypes();
+                if (types.length == 1
+                        || (types.length == 2 && types[1] == int.class)) {
+                    try {
+                        return prepareStatement((String) args[0],
+                                (args.length == 1) ? null : (Integer) args[1]);
+                    } catch (SQLException e) {
+                        checkFatal(e);
+                        throw e;
+                    }
+                }
+                break;
+            case "isClosed":
+                if (isClosed()) {
+                    return true;
+                }
+                break;
+            case "getAutoCommit":
+            case "getTransactionIsolation":
+            case "isReadOnly":
+            case "setAutoCommit":
+            case "setTransactionIsolation":
+            case "setReadOnly":
+                if (isClosed()) {
+                    throw new SQLException("Connection has been closed");
+                }
+                return trackSetting(method.getName(), args);
+            default:
+                if (isClosed()) {
+                    throw new SQLException("Connection has been closed");
+                }
+        }
+
+        applySettings();
+        try {
+            Object result = method.invoke(physical, args);
+            if (result instanceof Statement) {
+                return new PooledStatement(this, (Statement) result, method.getReturnType()).proxy;
+            }
+            return result;
+        } catch (InvocationTargetException e) {
+            checkFatal(e.getCause());
+            throw e.getCause();
+        }
+    }
+}
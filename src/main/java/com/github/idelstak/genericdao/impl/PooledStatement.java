@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2012-2016 Jeffrey L. Eppinger.  All Rights Reserved.
+ *     You may use, modify and share this code for non-commercial purposes
+ *     as long a you comply with this license from Creative Commons:
+ *     Summary of license: http://creativecommons.org/licenses/by-nc-sa/3.0
+ *     Full Text of License: http://creativecommons.org/licenses/by-nc-sa/3.0/legalcode
+ *     Specifically, if you distribute your code for non-educational purposes,
+ *     you must include this copyright notice in your work.
+ *     If you wish to have broader rights, you must contact the copyright holder.
+ */
+package com.github.idelstak.genericdao.impl;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.sql.Statement;
+
+/**
+ * A statement created on a pooled connection.
+ * <p>
+ * The holder gets a proxy, so that <tt>getConnection()</tt> returns the
+ * pooled connection rather than the physical one, and so that the pool sees
+ * the SQL errors that tell it a connection (or the whole database) has gone.
+ */
+class PooledStatement implements InvocationHandler {
+
+    final PooledConnection owner;
+    final Statement physical;
+    final Statement proxy;
+    // The query timeout we last set to enforce a transaction's time limit
+    private int deadlineTimeout = 0;
+
+    PooledStatement(PooledConnection owner, Statement physical, Class<?> type) {
+        this.owner = owner;
+        this.physical = physical;
+        this.proxy = (Statement) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, this);
+    }
+
+    void close() throws SQLException {
+        physical.close();
+    }
+
+    boolean isClosed() throws SQLException {
+        return physical.isClosed();
+    }
+
+    /**
+     * Limits the statement to the time left in the holder's transaction, if
+     * it has a time limit.
+     */
+    private void applyDeadline() throws SQLException {
+        long deadline = owner.deadline;
+        int timeout = 0;
+        if (deadline != 0) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                throw new SQLTimeoutException("Transaction timed out");
+            }
+            timeout = (int) Math.min(Integer.MAX_VALUE, (remaining + 999999999) / 1000000000);
+        }
+
+        if (timeout != deadlineTimeout) {
+            physical.setQueryTimeout(timeout);
+            deadlineTimeout = timeout;
+        }
+    }
+
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        switch (method.getName()) {
+            case "equals":
+                return proxy == args[0];
+            case "hashCode":
+                return System.identityHashCode(proxy);
+            case "toString":
+                return getClass().getSimpleName() + "(" + physical + ")";
+            case "close":
+                close();
+                return null;
+            case "isClosed":
+                return isClosed();
+            case "getConnection":
+                return owner.proxy;
+            default:
+                if (isClosed()) {
+                    throw new SQLException("Statement has been closed");
+                }
+        }
+
+        // Recorded so another thread can cancel it (see PooledConnection)
+        boolean executing = method.getName().startsWith("execute");
+        if (executing) {
+            owner.applySettings();
+            applyDeadline();
+            owner.executing = physical;
+        }
+        try {
+            return method.invoke(physical, args);
+        } catch (InvocationTargetException e) {
+            owner.checkFatal(e.getCause());
+            throw e.getCause();
+        } finally {
+            if (executing) {
+                owner.executing = null;
+            }
+        }
+    }
+}
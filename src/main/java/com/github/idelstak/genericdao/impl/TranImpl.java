@@ -13,45 +13,196 @@ package com.github.idelstak.genericdao.impl;
 import java.io.PrintWriter;
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.locks.ReentrantLock;
 
 import com.github.idelstak.genericdao.ConnectionPool;
 import com.github.idelstak.genericdao.RollbackException;
+import com.github.idelstak.genericdao.TransactionOptions;
+import com.github.idelstak.genericdao.TransactionalWork;
 
 public class TranImpl {
+    // Removed (not just cleared) when the transaction ends, so threads that
+    // are not in a transaction carry no entry.  That matters when there are
+    // many of them, i.e., virtual threads.
     private static ThreadLocal<TranImpl> myTran = new ThreadLocal<TranImpl>();
 
     private Connection connection = null;
     private ConnectionPool connectionPool = null;
     private PrintWriter debugWriter = null;
     private boolean isDebugOverriden = false;
+    // One per nested transaction, innermost last.  Null for one begun
+    // before the transaction had a connection (so there was no work to keep:
+    // rolling it back rolls back everything).
+    private final ArrayList<Savepoint> savepoints = new ArrayList<Savepoint>();
+    // Nesting level of the outermost read-only transaction, or 0 if none
+    private int readOnlyLevel = 0;
+    private int isolation = Connection.TRANSACTION_NONE;
+    // When statements stop being allowed (System.nanoTime()), or 0
+    private long deadline = 0;
+    private boolean isWriteBehind = false;
+    // Put-off writes, by DAO (i.e., table).  They're flushed together, in
+    // the order they were made (see WriteBuffer).
+    private final LinkedHashMap<GenericDAOImpl<?>, WriteBuffer> writeBuffers
+            = new LinkedHashMap<GenericDAOImpl<?>, WriteBuffer>();
+    // Held by threads other than the one that began the transaction while
+    // they work in it (see share())
+    private final ReentrantLock shareLock = new ReentrantLock();
+    // Set when the transaction commits or rolls back, possibly on another
+    // thread that was sharing it
+    private volatile boolean isEnded = false;
 
     public static void begin() throws RollbackException {
-        TranImpl t = myTran.get();
-        if (t != null)
-            rollbackAndThrow("Cannot begin twice without commit or rollback (i.e., you were already in a transaction)!");
-        myTran.set(new TranImpl());
+        begin(TransactionOptions.DEFAULT);
+    }
+
+    public static void begin(TransactionOptions options) throws RollbackException {
+        TranImpl t = current();
+        if (t == null) {
+            t = new TranImpl();
+            t.isolation = options.getIsolation();
+            if (options.getTimeout() > 0)
+                t.deadline = System.nanoTime() + options.getTimeout() * 1000000;
+            if (options.isReadOnly())
+                t.readOnlyLevel = 1;
+            t.isWriteBehind = options.isWriteBehind();
+            myTran.set(t);
+            return;
+        }
+
+        // Nested transactions run on the enclosing transaction's connection
+        if (options.getTimeout() > 0 || (options.getIsolation() != Connection.TRANSACTION_NONE
+                && options.getIsolation() != t.isolation) || (options.isWriteBehind() && !t.isWriteBehind)) {
+            rollbackAndThrow("A nested transaction cannot have its own isolation level, timeout or write-behind: "
+                    + options);
+        }
+
+        t.beginNested();
+        if (options.isReadOnly() && t.readOnlyLevel == 0)
+            t.readOnlyLevel = 1 + t.savepoints.size();
     }
 
     public static void commit() throws RollbackException {
-        TranImpl t = myTran.get();
+        TranImpl t = current();
         if (t == null)
             rollbackAndThrow("Not in a transaction");
-        t.executeCommit();
+        if (t.savepoints.isEmpty()) {
+            t.flushWrites(null);
+            t.executeCommit();
+        } else {
+            t.commitNested();
+        }
+    }
+
+    public static int getNestingLevel() {
+        TranImpl t = current();
+        if (t == null)
+            return 0;
+        return 1 + t.savepoints.size();
     }
 
     public static boolean isActive() {
-        return myTran.get() != null;
+        return current() != null;
+    }
+
+    /**
+     * Returns this thread's transaction, for <tt>share()</tt>, or
+     * <tt>null</tt> if it's not in one.
+     */
+    public static TranImpl capture() {
+        return current();
+    }
+
+    /**
+     * Runs work on this thread in a transaction captured (with
+     * <tt>capture()</tt>) on another thread, as a nested transaction.
+     * Threads sharing the transaction take turns, because they share its
+     * connection.
+     */
+    public static <T> T share(TranImpl t, TransactionalWork<T> work) throws RollbackException {
+        TranImpl mine = current();
+        if (mine != null && mine != t)
+            rollbackAndThrow("Cannot work in two transactions at once");
+
+        t.shareLock.lock();
+        try {
+            if (t.isEnded)
+                throw new RollbackException("The shared transaction has already ended");
+            if (mine == null)
+                myTran.set(t);
+            try {
+                // Nested, as this thread is now in the transaction
+                return TransactionRunner.execute(TransactionOptions.DEFAULT, work);
+            } finally {
+                if (mine == null)
+                    myTran.remove();
+            }
+        } finally {
+            t.shareLock.unlock();
+        }
+    }
+
+    public static boolean isWriteBehind() {
+        TranImpl t = current();
+        return t != null && t.isWriteBehind;
+    }
+
+    /**
+     * Runs this thread's put-off writes if any are to the given DAO's table
+     * (or to any table if <tt>dao</tt> is <tt>null</tt>).  Writes to the
+     * other tables run too, in the order they were made.
+     */
+    public static void flush(GenericDAOImpl<?> dao) throws RollbackException {
+        TranImpl t = current();
+        if (t != null)
+            t.flushWrites(dao);
+    }
+
+    /**
+     * Returns the buffer for put-off writes to the DAO's table.
+     */
+    static WriteBuffer getWriteBuffer(GenericDAOImpl<?> dao) {
+        TranImpl t = current();
+        if (t == null)
+            throw new AssertionError("Not in a transaction");
+        WriteBuffer b = t.writeBuffers.get(dao);
+        if (b == null) {
+            b = new WriteBuffer(dao);
+            t.writeBuffers.put(dao, b);
+        }
+        return b;
+    }
+
+    /**
+     * Tells whether this thread's (innermost) transaction is read-only.
+     */
+    public static boolean isReadOnly() {
+        TranImpl t = current();
+        return t != null && t.readOnlyLevel > 0;
+    }
+
+    /**
+     * Tells whether this thread's transaction was read-only from the start,
+     * so it can use a read-only connection (e.g., a replica's).
+     */
+    public static boolean isOutermostReadOnly() {
+        TranImpl t = current();
+        return t != null && t.readOnlyLevel == 1;
     }
 
     public static void rollback() {
-        TranImpl t = myTran.get();
+        TranImpl t = current();
         if (t == null)
             throw new AssertionError("Not in a transaction");
-        t.executeRollback();
+        t.rollbackInnermost();
     }
 
     public static void setDebugWriter(PrintWriter writer) {
-        TranImpl t = myTran.get();
+        TranImpl t = current();
         if (t == null)
             throw new AssertionError("Not in a transaction");
         t.debugWriter = writer;
@@ -59,7 +210,7 @@ public class TranImpl {
     }
 
     static PrintWriter getDebugWriter(ConnectionPool cp) {
-        TranImpl t = myTran.get();
+        TranImpl t = current();
         if (t == null)
             throw new AssertionError("Not in a transaction");
         if (t.isDebugOverriden)
@@ -72,18 +223,18 @@ public class TranImpl {
     }
 
     static void rollbackAndThrow(Exception e) throws RollbackException {
-        TranImpl t = myTran.get();
+        TranImpl t = current();
         if (t != null)
-            t.executeRollback();
+            t.rollbackInnermost();
         if (e instanceof RollbackException)
             throw (RollbackException) e;
         throw new RollbackException(e);
     }
 
     static void rollbackAndThrow(String message, Exception e) throws RollbackException {
-        TranImpl t = myTran.get();
+        TranImpl t = current();
         if (t != null)
-            t.executeRollback();
+            t.rollbackInnermost();
         throw new RollbackException(message, e);
     }
 
@@ -113,14 +264,32 @@ public class TranImpl {
     }
 
     static Connection getConnection() {
-        TranImpl t = myTran.get();
+        TranImpl t = current();
         if (t == null)
             return null;
         return t.connection;
     }
 
     public static Connection join(ConnectionPool connectionPool, ConnPoolImpl cpImpl) throws RollbackException {
-        TranImpl t = myTran.get();
+        return join(connectionPool, cpImpl, null);
+    }
+
+    public static Connection join(ConnectionPool connectionPool, final ConnPoolImpl cpImpl, final Semaphore quota)
+            throws RollbackException {
+        return join(connectionPool, new Callable<Connection>() {
+            public Connection call() throws SQLException {
+                return cpImpl.getConnection(quota);
+            }
+        });
+    }
+
+    /**
+     * Joins the pool to this thread's transaction.  If the transaction has no
+     * connection yet, it borrows one with <tt>borrow</tt>.
+     */
+    public static Connection join(ConnectionPool connectionPool, Callable<Connection> borrow)
+            throws RollbackException {
+        TranImpl t = current();
         if (t == null)
             throw new RollbackException("Must be in a transaction.");
 
@@ -134,15 +303,28 @@ public class TranImpl {
 
         try {
             t.connectionPool = connectionPool;
-            t.connection = cpImpl.getConnection();
+            t.connection = borrow.call();
+            // These must be set before the transaction starts.  The pool skips
+            // the calls that would not change anything (e.g., turning off
+            // autocommit on a connection last used for a transaction), and
+            // restores its defaults when the connection is next used outside
+            // a transaction.
+            if (t.readOnlyLevel == 1)
+                t.connection.setReadOnly(true);
+            if (t.isolation != Connection.TRANSACTION_NONE)
+                t.connection.setTransactionIsolation(t.isolation);
             t.connection.setAutoCommit(false);
+            PooledConnection pc = PooledConnection.of(t.connection);
+            if (pc != null)
+                pc.deadline = t.deadline;
             if (!t.isDebugOverriden) {
                 t.debugWriter = connectionPool.getDebugWriter();
             }
             if (t.debugWriter != null)
-                t.debugWriter.println("join: using connection " + t.connection);
+                t.debugWriter.println("join: using " + (t.readOnlyLevel == 1 ? "read-only " : "")
+                        + "connection " + t.connection);
             return t.connection;
-        } catch (SQLException e) {
+        } catch (Exception e) {
             rollbackAndThrow(e);
             throw new AssertionError("Can't happen (rollbackAndThrow returned).");
         }
@@ -152,15 +334,123 @@ public class TranImpl {
         /* Private constructor forces use of static factory (TranImpl.begin()) */
     }
 
+    private static TranImpl current() {
+        TranImpl t = myTran.get();
+        if (t != null && t.isEnded) {
+            // Ended by another thread sharing it
+            myTran.remove();
+            return null;
+        }
+        return t;
+    }
+
+    private void beginNested() throws RollbackException {
+        // The savepoint must come after the enclosing transaction's writes
+        flushWrites(null);
+
+        Savepoint savepoint = null;
+        if (connection != null) {
+            try {
+                savepoint = connection.setSavepoint();
+            } catch (SQLException e) {
+                rollbackAndThrow(e);
+            }
+        }
+
+        savepoints.add(savepoint);
+        if (debugWriter != null)
+            debugWriter.println("beginning nested transaction (level " + (1 + savepoints.size()) + ")");
+    }
+
+    private void commitNested() {
+        Savepoint savepoint = savepoints.remove(savepoints.size() - 1);
+        endNested();
+        if (debugWriter != null)
+            debugWriter.println("committing nested transaction (level " + (2 + savepoints.size()) + ")");
+
+        // Its work is now part of the enclosing transaction
+        if (savepoint != null) {
+            try {
+                connection.releaseSavepoint(savepoint);
+            } catch (SQLException e) {
+                // Harmless: the savepoint goes when the transaction ends
+                if (debugWriter != null)
+                    e.printStackTrace(debugWriter);
+            }
+        }
+    }
+
+    private void flushWrites(GenericDAOImpl<?> dao) throws RollbackException {
+        if (dao != null) {
+            WriteBuffer b = writeBuffers.get(dao);
+            if (b == null || b.isEmpty())
+                return;
+        }
+
+        // All the tables, even for one: its writes may depend on earlier
+        // writes to others (e.g., a parent row for a foreign key)
+        boolean isEmpty = true;
+        for (WriteBuffer b : writeBuffers.values())
+            isEmpty &= b.isEmpty();
+        if (isEmpty)
+            return;
+        try {
+            WriteBuffer.flush(writeBuffers.values(), connection, debugWriter);
+        } catch (Exception e) {
+            rollbackAndThrow(e);
+        }
+    }
+
+    private void endNested() {
+        // The read-only transaction may have been the one that ended
+        if (readOnlyLevel > 1 + savepoints.size())
+            readOnlyLevel = 0;
+    }
+
+    /**
+     * Rolls back the innermost transaction: to its savepoint if it's nested,
+     * or all the way otherwise.  If rolling back to the savepoint fails, the
+     * whole transaction is rolled back.
+     */
+    private void rollbackInnermost() {
+        // Every write still put off was made since the innermost transaction
+        // began (beginNested() flushes)
+        for (WriteBuffer b : writeBuffers.values())
+            b.clear();
+
+        if (savepoints.isEmpty()) {
+            executeRollback();
+            return;
+        }
+
+        Savepoint savepoint = savepoints.remove(savepoints.size() - 1);
+        endNested();
+        if (debugWriter != null)
+            debugWriter.println("rolling back nested transaction (level " + (2 + savepoints.size()) + ")");
+        if (connection == null)
+            return;
+
+        try {
+            if (savepoint != null)
+                connection.rollback(savepoint);
+            else
+                connection.rollback();
+        } catch (SQLException e) {
+            if (debugWriter != null)
+                e.printStackTrace(debugWriter);
+            executeRollback();
+        }
+    }
+
     private void executeCommit() throws RollbackException {
-        myTran.set(null);
+        myTran.remove();
+        isEnded = true;
 
         if (connection != null) {
             try {
                 if (debugWriter != null)
                     debugWriter.println("committing transaction");
                 connection.commit();
-                connection.setAutoCommit(true);
                 connectionPool.releaseConnection(connection);
             } catch (SQLException e) {
                 try {
@@ -175,14 +465,14 @@ public class TranImpl {
     }
 
     private void executeRollback() {
-        myTran.set(null);
+        myTran.remove();
+        isEnded = true;
 
         if (connection != null) {
             try {
                 if (debugWriter != null)
                     debugWriter.println("rolling back transaction");
                 connection.rollback();
-                connection.setAutoCommit(true);
                 connectionPool.releaseConnection(connection);
             } catch (SQLException e) {
                 // Can't throw exception from application initiated rollback
@@ -198,12 +488,12 @@ public class TranImpl {
                 try {
                     connection.close();
                 } catch (SQLException e2) {
-                    // Do not use debugPrintStackTrace as myTran is null, now.
+                    // Do not use debugPrintStackTrace as myTran is removed, now.
                     if (debugWriter != null)
                         e2.printStackTrace();
                 }
 
-                // Do not use debugPrintStackTrace as myTran is null, now.
+                // Do not use debugPrintStackTrace as myTran is removed, now.
                 if (debugWriter != null)
                     e.printStackTrace();
             }
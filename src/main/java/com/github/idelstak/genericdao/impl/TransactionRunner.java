@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2012-2016 Jeffrey L. Eppinger.  All Rights Reserved.
+ *     You may use, modify and share this code for non-commercial purposes
+ *     as long a you comply with this license from Creative Commons:
+ *     Summary of license: http://creativecommons.org/licenses/by-nc-sa/3.0
+ *     Full Text of License: http://creativecommons.org/licenses/by-nc-sa/3.0/legalcode
+ *     Specifically, if you distribute your code for non-educational purposes,
+ *     you must include this copyright notice in your work.
+ *     If you wish to have broader rights, you must contact the copyright holder.
+ */
+package com.github.idelstak.genericdao.impl;
+
+import java.sql.SQLException;
+import java.sql.SQLTransactionRollbackException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.github.idelstak.genericdao.RollbackException;
+import com.github.idelstak.genericdao.TransactionOptions;
+import com.github.idelstak.genericdao.TransactionalWork;
+
+/**
+ * Runs work in a transaction, running it again when the transaction fails
+ * because it lost a race with another one (a deadlock, a serialization
+ * failure or a lock wait timeout).
+ * <p>
+ * A deadlock or serialization failure rolls the whole transaction back in
+ * the database, but a lock wait timeout (MySQL error 1205) rolls back only
+ * the statement that timed out, unless the server runs with
+ * <tt>innodb_rollback_on_timeout</tt>.  Either way the transaction is rolled
+ * back here before the work runs again, so the retry never builds on the
+ * first try's writes or keeps its locks.
+ * <p>
+ * Retries back off exponentially, with full jitter, so transactions that
+ * collided do not collide again.  They are also limited by a budget shared
+ * by all threads: over time, at most about one retry per ten transactions.
+ * When the database is overloaded (and most transactions are failing),
+ * retrying them all would only add to the load.
+ */
+public class TransactionRunner {
+
+    private static final long BASE_BACKOFF_MILLIS = 5;
+    private static final long MAX_BACKOFF_MILLIS = 1000;
+    // Budget, in tenths of a retry.  Each transaction adds a tenth.
+    private static final int BUDGET_PER_RETRY = 10;
+    private static final int MAX_BUDGET = 100 * BUDGET_PER_RETRY;
+    // MySQL error codes: deadlock found, lock wait timeout exceeded
+    private static final int[] RETRYABLE_ERROR_CODES = {1213, 1205};
+
+    private static final AtomicInteger budget = new AtomicInteger(MAX_BUDGET);
+    private static final LongAdder retries = new LongAdder();
+    private static final LongAdder retriesExhausted = new LongAdder();
+
+    private TransactionRunner() {
+    }
+
+    public static <T> T execute(TransactionOptions options, TransactionalWork<T> work) throws RollbackException {
+        if (TranImpl.isActive()) {
+            // Can't retry: after a deadlock the database has rolled back
+            // the enclosing transaction, too, and after a lock wait timeout
+            // the enclosing transaction still holds the locks it took, which
+            // may be what the other transaction is waiting for.  Whoever
+            // began it should retry it.
+            return executeOnce(options, work);
+        }
+
+        deposit();
+        for (int attempt = 0;; attempt++) {
+            try {
+                return executeOnce(options, work);
+            } catch (RollbackException e) {
+                if (!isRetryable(e)) {
+                    throw e;
+                }
+                if (attempt >= options.getMaxRetries() || !withdraw()) {
+                    retriesExhausted.increment();
+                    throw e;
+                }
+                retries.increment();
+                backOff(attempt, e);
+            }
+        }
+    }
+
+    public static long getRetryCount() {
+        return retries.sum();
+    }
+
+    public static long getRetriesExhaustedCount() {
+        return retriesExhausted.sum();
+    }
+
+    /**
+     * Tells whether a transaction failed because it lost a race with another
+     * one, so running it again may succeed.
+     */
+    static boolean isRetryable(Throwable t) {
+        for (; t != null; t = t.getCause()) {
+            if (t instanceof SQLTransactionRollbackException) {
+                return true;
+            }
+            if (!(t instanceof SQLException)) {
+                continue;
+            }
+
+            SQLException e = (SQLException) t;
+            String sqlState = e.getSQLState();
+            // Serialization failure (MySQL deadlocks, too); PostgreSQL deadlock
+            if ("40001".equals(sqlState) || "40P01".equals(sqlState)) {
+                return true;
+            }
+            for (int code : RETRYABLE_ERROR_CODES) {
+                if (e.getErrorCode() == code) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static <T> T executeOnce(TransactionOptions options, TransactionalWork<T> work)
+            throws RollbackException {
+        int level = TranImpl.getNestingLevel();
+        TranImpl.begin(options);
+        try {
+            T result = work.execute();
+            TranImpl.commit();
+            return result;
+        } finally {
+            // Also before a retry: a lock wait timeout may have rolled back
+            // only the statement, leaving the transaction open
+            if (TranImpl.getNestingLevel() > level)
+                TranImpl.rollback();
+        }
+    }
+
+    private static void backOff(int attempt, RollbackException cause) throws RollbackException {
+        long cap = Math.min(MAX_BACKOFF_MILLIS, BASE_BACKOFF_MILLIS << Math.min(attempt, 20));
+        try {
+            TimeUnit.MILLISECONDS.sleep(ThreadLocalRandom.current().nextLong(cap + 1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RollbackException("Interrupted before retrying: " + cause.getMessage(), cause);
+        }
+    }
+
+    private static void deposit() {
+        int b = budget.get();
+        if (b < MAX_BUDGET) {
+            // A lost race just loses this transaction's deposit
+            budget.compareAndSet(b, b + 1);
+        }
+    }
+
+    private static boolean withdraw() {
+        for (;;) {
+            int b = budget.get();
+            if (b < BUDGET_PER_RETRY) {
+                return false;
+            }
+            if (budget.compareAndSet(b, b - BUDGET_PER_RETRY)) {
+                return true;
+            }
+        }
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright (c) 2012-2016 Jeffrey L. Eppinger.  All Rights Reserved.
+ *     You may use, modify and share this code for non-commercial purposes
+ *     as long a you comply with this license from Creative Commons:
+ *     Summary of license: http://creativecommons.org/licenses/by-nc-sa/3.0
+ *     Full Text of License: http://creativecommons.org/licenses/by-nc-sa/3.0/legalcode
+ *     Specifically, if you distribute your code for non-educational purposes,
+ *     you must include this copyright notice in your work.
+ *     If you wish to have broader rights, you must contact the copyright holder.
+ */
+package com.github.idelstak.genericdao.impl;
+
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.github.idelstak.genericdao.RollbackException;
+
+/**
+ * The writes to one table that a transaction has put off (see
+ * <tt>TransactionOptions.withWriteBehind()</tt>).
+ * <p>
+ * When flushed (with the transaction's other buffers), the writes run in
+ * the order they were made, split into runs: consecutive writes of one kind
+ * to one table, each touching a row at most once.  Each run is one JDBC
+ * batch, sorted by primary key, so that transactions writing the same rows
+ * lock them in the same order rather than deadlocking.  Only writes within a
+ * run are reordered, so, e.g., a delete still runs before a later insert
+ * that reuses the deleted row's unique values, and a child row is still
+ * deleted before its parent in another table.
+ */
+final class WriteBuffer {
+
+    static final int CREATE = 0;
+    static final int UPDATE = 1;
+    static final int DELETE = 2;
+
+    /**
+     * Orders primary keys (as lists of values) column by column.
+     */
+    static final Comparator<List<Object>> KEY_ORDER = new Comparator<List<Object>>() {
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        public int compare(List<Object> a, List<Object> b) {
+            for (int i = 0; i < a.size(); i++) {
+                Object x = a.get(i);
+                Object y = b.get(i);
+                int c;
+                if (x == null || y == null) {
+                    c = (x == null) ? ((y == null) ? 0 : -1) : 1;
+                } else if (x instanceof Comparable && x.getClass() == y.getClass()) {
+                    c = ((Comparable) x).compareTo(y);
+                } else {
+                    c = x.toString().compareTo(y.toString());
+                }
+                if (c != 0) {
+                    return c;
+                }
+            }
+            return 0;
+        }
+    };
+
+    private static final Comparator<Write> WRITE_ORDER = new Comparator<Write>() {
+        public int compare(Write a, Write b) {
+            return KEY_ORDER.compare(a.key, b.key);
+        }
+    };
+
+    // Numbers the writes in the order they were made, across all buffers
+    private static final AtomicLong SEQUENCE = new AtomicLong();
+
+    private static final Comparator<Write> SEQUENCE_ORDER = new Comparator<Write>() {
+        public int compare(Write a, Write b) {
+            return Long.compare(a.sequence, b.sequence);
+        }
+    };
+
+    private final GenericDAOImpl<?> dao;
+    private final ArrayList<Write> writes = new ArrayList<Write>();
+    // The latest write to each row, for merging updates
+    private final HashMap<List<Object>, Write> latest = new HashMap<List<Object>, Write>();
+
+    WriteBuffer(GenericDAOImpl<?> dao) {
+        this.dao = dao;
+    }
+
+    /**
+     * Adds a write.
+     *
+     * @param key the row's primary key values
+     * @param values for <tt>CREATE</tt> and <tt>UPDATE</tt>, the values of
+     *            all the DAO's properties, in order
+     */
+    void add(int kind, List<Object> key, Object[] values) {
+        Write last = latest.get(key);
+        if (kind == UPDATE && last != null && last.kind != DELETE) {
+            // Writing the row again: just write the new values the first time
+            last.values = values;
+            return;
+        }
+
+        Write w = new Write(this, kind, key, values);
+        writes.add(w);
+        latest.put(key, w);
+    }
+
+    void clear() {
+        writes.clear();
+        latest.clear();
+    }
+
+    boolean isEmpty() {
+        return writes.isEmpty();
+    }
+
+    void flush(Connection con, PrintWriter debug) throws SQLException, RollbackException {
+        flush(Collections.singletonList(this), con, debug);
+    }
+
+    /**
+     * Runs the writes in all the buffers, in the order they were made (but
+     * for sorting within runs, see above), and clears the buffers.
+     */
+    static void flush(Collection<WriteBuffer> buffers, Connection con, PrintWriter debug)
+            throws SQLException, RollbackException {
+        ArrayList<Write> all = new ArrayList<Write>();
+        for (WriteBuffer b : buffers) {
+            if (debug != null && !b.writes.isEmpty()) {
+                debug.println("flushing " + b.writes.size() + " writes to " + b.dao.getTableName());
+            }
+            all.addAll(b.writes);
+        }
+        Collections.sort(all, SEQUENCE_ORDER);
+
+        int start = 0;
+        while (start < all.size()) {
+            Write first = all.get(start);
+            HashSet<List<Object>> keys = new HashSet<List<Object>>();
+            int end = start;
+            while (end < all.size() && all.get(end).buffer == first.buffer && all.get(end).kind == first.kind
+                    && keys.add(all.get(end).key)) {
+                end++;
+            }
+            first.buffer.flushRun(con, new ArrayList<Write>(all.subList(start, end)), debug);
+            start = end;
+        }
+
+        for (WriteBuffer b : buffers) {
+            b.clear();
+        }
+    }
+
+    /**
+     * Runs writes of one kind, to distinct rows, as one batch.
+     */
+    private void flushRun(Connection con, List<Write> run, PrintWriter debug)
+            throws SQLException, RollbackException {
+        int kind = run.get(0).kind;
+        Collections.sort(run, WRITE_ORDER);
+        List<Object[]> rows = new ArrayList<Object[]>(run.size());
+        for (Write w : run) {
+            rows.add((kind == DELETE) ? w.key.toArray() : w.values);
+        }
+
+        if (kind == CREATE) {
+            dao.batchCreate(con, rows, debug);
+        } else if (kind == UPDATE) {
+            dao.batchUpdate(con, rows, debug);
+        } else {
+            dao.batchDelete(con, rows, debug);
+        }
+    }
+
+    private static final class Write {
+
+        final WriteBuffer buffer;
+        final long sequence = SEQUENCE.incrementAndGet();
+        final int kind;
+        final List<Object> key;
+        Object[] values;
+
+        Write(WriteBuffer buffer, int kind, List<Object> key, Object[] values) {
+            this.buffer = buffer;
+            this.kind = kind;
+            this.key = key;
+            this.values = values;
+        }
+    }
+}